@@ -23,7 +23,7 @@ public class CPUView {
 
                 for (int i = 0; i < mRegisters.length; i++) {
                     ImGui.tableNextColumn();
-                    ImGui.text(String.format("%3s:", ISA.RegisterAlias.values()[i + 1]));
+                    ImGui.text(String.format("%3s:", ISA.RegisterAlias.fromIndex(i + 1)));
 
                     ImGui.tableNextColumn();
                     ImGui.text(String.format("%08X", mRegisters[i]));
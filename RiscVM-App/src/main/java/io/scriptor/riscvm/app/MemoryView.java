@@ -2,7 +2,7 @@ package io.scriptor.riscvm.app;
 
 import imgui.ImGui;
 import imgui.flag.ImGuiTableFlags;
-import io.scriptor.riscvm.core.Instruction;
+import io.scriptor.riscvm.core.Decoded;
 
 import java.nio.ByteBuffer;
 
@@ -13,6 +13,7 @@ public class MemoryView {
     private int mSelectedMemoryFormat = 0;
 
     private final ByteBuffer mBuffer;
+    private final Decoded mDecoded = new Decoded();
 
     public MemoryView(ByteBuffer buffer) {
         mBuffer = buffer;
@@ -98,8 +99,7 @@ public class MemoryView {
                 for (int j = 0; j < N; j += 4) {
                     final var c = buffer.getInt();
                     if (ImGui.tableNextColumn()) {
-                        final var inst = Instruction.valueOf(c);
-                        final var text = String.format("%26s", inst == null ? "" : inst);
+                        final var text = String.format("%26s", mDecoded.decode(c) ? mDecoded : "");
                         if (i + j == pc) ImGui.textColored(0xff0000ff, text);
                         else ImGui.text(text);
                     }
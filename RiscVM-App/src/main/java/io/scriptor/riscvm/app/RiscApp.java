@@ -5,6 +5,7 @@ import imgui.app.Application;
 import imgui.app.Configuration;
 import imgui.flag.ImGuiConfigFlags;
 import io.scriptor.riscvm.core.ISA;
+import io.scriptor.riscvm.vm.DirectMemory;
 import io.scriptor.riscvm.vm.RiscVM;
 
 import java.io.BufferedInputStream;
@@ -30,7 +31,7 @@ public class RiscApp extends Application {
     public RiscApp(RiscVM vm) {
         super();
         mVM = vm;
-        mMemoryView = new MemoryView(vm.getMachine().getMemory().getBuffer());
+        mMemoryView = new MemoryView(((DirectMemory) vm.getMachine().getMemory()).getBuffer());
         mCPUView = new CPUView(vm.getMachine().getCPU().getRegisters());
 
         System.setOut(new PrintStream(mOutputView.getStream()));
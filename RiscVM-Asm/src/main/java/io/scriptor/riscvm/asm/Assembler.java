@@ -2,29 +2,59 @@ package io.scriptor.riscvm.asm;
 
 import io.scriptor.riscvm.core.*;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
-import static io.scriptor.riscvm.asm.Token.Type.*;
-import static io.scriptor.riscvm.core.Util.handle;
-import static io.scriptor.riscvm.core.Util.handleT;
+import static io.scriptor.riscvm.asm.Lexer.Type.*;
 
 public class Assembler {
 
-    public static void assemble(InputStream stream, ByteBuffer buffer, String... sections) {
-        final var asm = new Assembler(stream, buffer.capacity());
+    private enum Directive {
+        SECTION,
+        WORD,
+        HALF,
+        BYTE,
+        STRING,
+        ASCII,
+        ASCIZ,
+        SKIP,
+        SET,
+    }
+
+    private static final Lexer.Keywords<Directive> DIRECTIVES = new Lexer.Keywords<>(Directive.values());
+
+    /**
+     * Reads the whole stream and assembles it, see {@link #assemble(ByteBuffer, ByteBuffer, String...)}.
+     */
+    public static int assemble(InputStream stream, ByteBuffer buffer, String... sections) {
+        final byte[] source;
+        try {
+            source = stream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return assemble(ByteBuffer.wrap(source), buffer, sections);
+    }
+
+    /**
+     * @param source the bytes between position and limit are assembled, e.g. a memory-mapped file
+     * @return the end of the image, i.e. the address behind the last section
+     */
+    public static int assemble(ByteBuffer source, ByteBuffer buffer, String... sections) {
+        final var asm = new Assembler(new Lexer(source));
 
-        asm.next();
-        do {
+        asm.mLexer.next();
+        while (asm.notEOF())
             asm.nextLine();
-        } while (asm.notEOF());
 
         for (final var name : sections) {
-            final var section = asm.mSections.computeIfAbsent(name, key -> new Section(key, asm.mMemorySize));
+            final var section = asm.mSections.computeIfAbsent(name, Section::new);
             asm.mSectionsOrder.add(section);
         }
 
@@ -32,87 +62,41 @@ public class Assembler {
             if (!asm.mSectionsOrder.contains(section))
                 asm.mSectionsOrder.add(section);
 
-        for (final var section : asm.mSectionsOrder)
-            insertSection(buffer, section, asm.mSymbolTable, asm.mSectionsOrder);
-    }
-
-    private static void insertSection(ByteBuffer buffer, Section section, Map<String, Symbol> symbolTable, List<Section> sectionsOrder) {
-        int start = offsetOf(sectionsOrder, section);
-
-        buffer.position(start);
-        section.put(buffer);
-
-        for (final var entry : section.usage.entrySet()) {
-            final var symbol = entry.getKey();
-            final var offsets = entry.getValue();
-
-            if (!symbolTable.containsKey(symbol))
-                throw new IllegalStateException(String.format("undefined symbol '%s'", symbol));
-
-            final var sym = symbolTable.get(symbol);
-            final var location = sym.value() + offsetOf(sectionsOrder, sym.section());
-
-            for (final var o : offsets) {
-                final var inst = buffer.getInt(start + o);
-
-                final var itype = ISA.values()[Instruction.getOpcode(inst)].itype;
-                var i = switch (itype) {
-                    case I -> Instruction.fromI(inst);
-                    case S -> Instruction.fromS(inst);
-                    case U -> Instruction.fromU(inst);
-                    default -> throw new IllegalStateException("Unexpected value: " + itype);
-                };
-
-                i = switch (itype) {
-                    case I -> Instruction.fromI(i.opcode, i.rd, i.rs1, location);
-                    case S -> Instruction.fromS(i.opcode, i.rs1, i.rs2, location);
-                    case U -> Instruction.fromU(i.opcode, i.rd, location);
-                    default -> throw new IllegalStateException("Unexpected value: " + itype);
-                };
-
-                buffer.putInt(start + o, i.pack());
-            }
+        // lay out all sections first, so every reference is patched in a single pass
+        int base = 0;
+        for (final var section : asm.mSectionsOrder) {
+            section.base(base);
+            base += section.counter();
         }
-    }
 
-    private static int offsetOf(List<Section> sectionsOrder, Section section) {
-        int offset = 0;
-        for (final var s : sectionsOrder) {
-            if (s == section)
-                return offset;
-            offset += s.counter();
-        }
-        return offset;
-    }
-
-    private static boolean isDigit(int c) {
-        return (0x30 <= c && c <= 0x39);
-    }
+        if (Integer.compareUnsigned(base, buffer.capacity()) > 0)
+            throw new IllegalStateException(String.format(
+                    "image of %d bytes does not fit into %d bytes of memory",
+                    base,
+                    buffer.capacity()));
 
-    private static boolean isXDigit(int c) {
-        return isDigit(c) || (0x41 <= c && c <= 0x46) || (0x61 <= c && c <= 0x66);
-    }
+        for (final var section : asm.mSectionsOrder)
+            section.put(buffer);
 
-    private static boolean isAlpha(int c) {
-        return (0x41 <= c && c <= 0x5A) || (0x61 <= c && c <= 0x7A);
-    }
+        for (final var section : asm.mSectionsOrder)
+            section.link(buffer, asm.mSymbols);
 
-    private static boolean isAlNum(int c) {
-        return isDigit(c) || isAlpha(c);
+        return base;
     }
 
-    private final InputStream mStream;
-    private final int mMemorySize;
-    private Token mToken;
+    private final Lexer mLexer;
 
-    public final Map<String, Symbol> mSymbolTable = new HashMap<>();
+    private final SymbolTable mSymbols = new SymbolTable();
     private final Map<String, Section> mSections = new HashMap<>();
     private final List<Section> mSectionsOrder = new Vector<>();
     private String mSelected = "";
+    /**
+     * the selected section, created when it is first written to
+     */
+    private Section mSection;
 
-    private Assembler(InputStream stream, int memorySize) {
-        mStream = stream;
-        mMemorySize = memorySize;
+    private Assembler(Lexer lexer) {
+        mLexer = lexer;
     }
 
     @Override
@@ -123,230 +107,94 @@ public class Assembler {
             builder.append(entry.getValue()).append('\n');
 
         builder.append("---------- Symbols ----------\n");
-        for (final var entry : mSymbolTable.entrySet())
-            builder.append(entry.getKey()).append(": ").append(entry.getValue().section().name).append("+").append(String.format("%08X", entry.getValue().value())).append('\n');
+        for (int id = 0; id < mSymbols.size(); id++) {
+            final var symbol = mSymbols.get(id);
+            builder.append(symbol.name()).append(": ");
+            if (symbol.isDefined())
+                builder.append(symbol.section().name).append("+").append(String.format("%08X", symbol.value()));
+            else builder.append("undefined");
+            builder.append('\n');
+        }
         builder.append("-----------------------------");
 
         return builder.toString();
     }
 
-    private int read() {
-        return handleT(mStream::read).orElse(-1);
-    }
-
-    private void mark() {
-        mStream.mark(1);
-    }
-
-    private void reset() {
-        handle(mStream::reset);
-    }
-
-    private int escape(int c) {
-        return switch (c) {
-            case 'n' -> '\n';
-            case 't' -> '\t';
-            case 'r' -> '\r';
-            default -> c;
-        };
-    }
-
-    private Token next() {
-        var c = read();
-
-        while (0x00 <= c && c <= 0x20)
-            c = read();
-
-        if (c < 0x00)
-            return mToken = new Token();
-
-        if (c == '#') {
-            while (0x00 <= c && c != '\n')
-                c = read();
-            return next();
-        }
-
-        if (c == '.') {
-            final var next = next();
-            if (next.type() != SYMBOL)
-                throw new IllegalStateException();
-            return mToken = new Token(DIRECTIVE, next.value());
-        }
-
-        if (c == '-') {
-            final var next = next();
-            if (next.type() != IMMEDIATE)
-                throw new IllegalStateException();
-            return mToken = new Token(IMMEDIATE, -Integer.parseInt(next.value()));
-        }
-
-        if (c == '"') {
-            final var str = new StringBuilder();
-            while (true) {
-                c = read();
-                if (c < 0x00 || c == '"')
-                    break;
-
-                if (c == '\\')
-                    c = escape(read());
-
-                str.append((char) c);
-            }
-            return mToken = new Token(STRING, str.toString());
-        }
-
-        if (c == '\'') {
-            int chr = read();
-            if (chr == '\\')
-                chr = escape(read());
-            read();
-
-            return mToken = new Token(IMMEDIATE, Integer.toString(chr));
-        }
-
-        if (c == '0') {
-            mark();
-            final var x = read();
-            if (x != 'x' && x != 'X')
-                reset();
-            else {
-                final var hex = new StringBuilder();
-                while (true) {
-                    mark();
-                    c = read();
-                    if (!isXDigit(c))
-                        break;
-                    hex.append((char) c);
-                }
-                reset();
-                return mToken = new Token(IMMEDIATE, Integer.valueOf(hex.toString(), 16).toString());
-            }
-        }
-
-        if (isDigit(c)) {
-            final var integer = new StringBuilder().append((char) c);
-            while (true) {
-                mark();
-                c = read();
-                if (!isDigit(c))
-                    break;
-                integer.append((char) c);
-            }
-            reset();
-            return mToken = new Token(IMMEDIATE, integer.toString());
-        }
-
-        if (isAlpha(c) || c == '_') {
-            final var symbol = new StringBuilder().append((char) c);
-            while (true) {
-                mark();
-                c = read();
-                if (!isAlNum(c) && c != '_')
-                    break;
-                symbol.append((char) c);
-            }
-            reset();
-
-            final var sym = symbol.toString();
-
-            if (sym.matches("\\b(x(\\d+))\\b"))
-                return mToken = new Token(REGISTER, symbol.substring(1));
-
-            for (final var alias : ISA.RegisterAlias.values())
-                if (sym.equalsIgnoreCase(alias.name()))
-                    return mToken = new Token(REGISTER, Integer.toString(alias.ordinal()));
-
-            return mToken = new Token(SYMBOL, sym);
-        }
-
-        return mToken = new Token(OTHER, c);
-    }
-
     private boolean notEOF() {
-        return mToken == null || mToken.type() != EOF;
-    }
-
-    private Token getAndNext() {
-        final var token = mToken;
-        next();
-        return token;
-    }
-
-    private boolean at(Token.Type type) {
-        return mToken != null && notEOF() && mToken.type() == type;
+        return mLexer.getType() != EOF;
     }
 
-    private boolean at(String value) {
-        return mToken != null && notEOF() && mToken.value().equals(value);
+    private boolean at(Lexer.Type type) {
+        return mLexer.getType() == type;
     }
 
-    private boolean nextIfAt(String value) {
-        if (at(value)) {
-            next();
+    private boolean nextIfAt(char c) {
+        if (mLexer.is(c)) {
+            mLexer.next();
             return true;
         }
         return false;
     }
 
-    private Token expect(Token.Type type) {
-        if (at(type)) return mToken;
-        throw new IllegalStateException(String.format("expected type '%s' but got '%s'", type, mToken));
+    private void expect(Lexer.Type type) {
+        if (!at(type))
+            throw mLexer.error("expected type '%s' but got %s", type, mLexer);
     }
 
-    private Token expect(String value) {
-        if (at(value)) return mToken;
-        throw new IllegalStateException(String.format("expected value '%s' but got '%s'", value, mToken));
+    private void expectAndNext(char c) {
+        if (!mLexer.is(c))
+            throw mLexer.error("expected '%c' but got %s", c, mLexer);
+        mLexer.next();
     }
 
-    private Token expectAndNext(Token.Type type) {
-        final var token = expect(type);
-        next();
-        return token;
+    private String expectTextAndNext(Lexer.Type type) {
+        expect(type);
+        final var text = mLexer.getText();
+        mLexer.next();
+        return text;
     }
 
-    private Token expectAndNext(String value) {
-        final var token = expect(value);
-        next();
-        return token;
+    private int expectValueAndNext(Lexer.Type type) {
+        expect(type);
+        final var value = mLexer.getValue();
+        mLexer.next();
+        return value;
     }
 
     private void nextLine() {
-        String symbol;
-        if (at(SYMBOL)) {
-            symbol = getAndNext().value();
-            if (nextIfAt(":"))
-                nextSymbol(symbol);
-            else {
-                nextInstruction(symbol);
-                return;
-            }
+        if (at(LABEL)) {
+            nextSymbol();
+        } else if (at(DIRECTIVE)) {
+            nextDirective();
+        } else {
+            nextInstruction();
         }
-
-        if (at(DIRECTIVE)) nextDirective();
-        else nextInstruction(expectAndNext(SYMBOL).value());
     }
 
     private Section section() {
-        return mSections.computeIfAbsent(mSelected, key -> new Section(key, mMemorySize));
+        if (mSection == null)
+            mSection = mSections.computeIfAbsent(mSelected, Section::new);
+        return mSection;
     }
 
-    private void nextSymbol(String symbol) {
-        mSymbolTable.put(symbol, new Symbol(section(), section().counter()));
+    private void nextSymbol() {
+        mSymbols.get(mSymbols.intern(mLexer)).define(section(), section().counter());
+        mLexer.next();
     }
 
-    private void nextInstruction(String symbol) {
-        final var inst = ISA.valueOf(symbol.toUpperCase());
+    private void nextInstruction() {
+        expect(SYMBOL);
+        final var inst = mLexer.getMnemonic();
+        if (inst == null)
+            throw mLexer.error("undefined instruction '%s'", mLexer.getText());
+        mLexer.next();
+
         if (nextPseudoInstruction(inst))
             return;
 
         final var ops = new Operand[inst.operands.length];
-        for (int i = 0; i < ops.length; i++) {
-            ops[i] = nextOperand(i > 0);
-            if (ops[i] instanceof OpSymbol) {
-                section().use(ops[i].asSym());
-                ops[i] = new OpImmediate(0);
-            }
-        }
+        for (int i = 0; i < ops.length; i++)
+            ops[i] = nextOperand(i > 0, inst);
 
         final var instruction = inst.toInstruction(ops);
         section().putInt(instruction.pack());
@@ -355,46 +203,42 @@ public class Assembler {
     private boolean nextPseudoInstruction(ISA instruction) {
         switch (instruction) {
             case LI -> {
-                final var rd = nextOperand(false);
-                final var imm = nextOperand(true);
+                final var rd = nextOperand(false, ISA.ADDI);
+                final var imm = nextOperand(true, ISA.ADDI);
                 section().putInt(ISA.ADDI.toInstruction(rd, new OpRegister(ISA.RegisterAlias.ZERO), imm).pack());
                 return true;
             }
             case LA -> {
-                final var rd = nextOperand(false);
-                final var sym = nextOperand(true);
-                section().use(sym.asSym());
+                final var rd = nextOperand(false, ISA.ADDI);
+                nextReference(true, ISA.ADDI);
                 section().putInt(ISA.ADDI.toInstruction(rd, new OpRegister(ISA.RegisterAlias.ZERO), new OpImmediate(0)).pack());
                 return true;
             }
             case MV -> {
-                final var rd = nextOperand(false);
-                final var rs1 = nextOperand(true);
+                final var rd = nextOperand(false, ISA.ADDI);
+                final var rs1 = nextOperand(true, ISA.ADDI);
                 section().putInt(ISA.ADDI.toInstruction(rd, rs1, new OpImmediate(0)).pack());
                 return true;
             }
             case BEQZ -> {
-                final var rs1 = nextOperand(false);
-                final var sym = nextOperand(true);
-                section().use(sym.asSym());
+                final var rs1 = nextOperand(false, ISA.BEQ);
+                nextReference(true, ISA.BEQ);
                 section().putInt(ISA.BEQ.toInstruction(rs1, new OpRegister(ISA.RegisterAlias.ZERO), new OpImmediate(0)).pack());
                 return true;
             }
             case BNEZ -> {
-                final var rs1 = nextOperand(false);
-                final var imm = nextOperand(true);
+                final var rs1 = nextOperand(false, ISA.BNE);
+                final var imm = nextOperand(true, ISA.BNE);
                 section().putInt(ISA.BNE.toInstruction(rs1, new OpRegister(ISA.RegisterAlias.ZERO), imm).pack());
                 return true;
             }
             case JR -> {
-                final var sym = nextOperand(false);
-                section().use(sym.asSym());
+                nextReference(false, ISA.JAL);
                 section().putInt(ISA.JAL.toInstruction(new OpRegister(ISA.RegisterAlias.RA), new OpImmediate(0)).pack());
                 return true;
             }
             case J -> {
-                final var sym = nextOperand(false);
-                section().use(sym.asSym());
+                nextReference(false, ISA.JAL);
                 section().putInt(ISA.JAL.toInstruction(new OpRegister(ISA.RegisterAlias.ZERO), new OpImmediate(0)).pack());
                 return true;
             }
@@ -408,13 +252,13 @@ public class Assembler {
                 return true;
             }
             case PUSH -> {
-                final var rs1 = nextOperand(false);
+                final var rs1 = nextOperand(false, ISA.SW);
                 section().putInt(ISA.SW.toInstruction(rs1, new OpRegister(ISA.RegisterAlias.SP), new OpImmediate(0)).pack());
                 section().putInt(ISA.SUBI.toInstruction(new OpRegister(ISA.RegisterAlias.SP), new OpRegister(ISA.RegisterAlias.SP), new OpImmediate(4)).pack());
                 return true;
             }
             case POP -> {
-                final var rd = nextOperand(false);
+                final var rd = nextOperand(false, ISA.LW);
                 section().putInt(ISA.ADDI.toInstruction(new OpRegister(ISA.RegisterAlias.SP), new OpRegister(ISA.RegisterAlias.SP), new OpImmediate(4)).pack());
                 section().putInt(ISA.LW.toInstruction(rd, new OpRegister(ISA.RegisterAlias.SP), new OpImmediate(0)).pack());
                 return true;
@@ -424,67 +268,80 @@ public class Assembler {
     }
 
     private void nextDirective() {
-        final var directive = expectAndNext(DIRECTIVE).value().toLowerCase();
+        final var directive = mLexer.lookup(DIRECTIVES);
+        if (directive == null)
+            throw mLexer.error("undefined directive '%s'", mLexer.getText());
+        mLexer.next();
 
         switch (directive) {
-            case "section" -> mSelected = expectAndNext(DIRECTIVE).value();
-            case "word" -> {
-                do {
-                    final var aWord = Integer.parseInt(expectAndNext(IMMEDIATE).value());
-                    section().putInt(aWord);
-                } while (nextIfAt(","));
+            case SECTION -> {
+                mSelected = expectTextAndNext(DIRECTIVE);
+                mSection = null;
             }
-            case "half" -> {
+            case WORD -> {
                 do {
-                    final var aHalf = Short.parseShort(expectAndNext(IMMEDIATE).value());
-                    section().putShort(aHalf);
-                } while (nextIfAt(","));
+                    section().putInt(expectValueAndNext(IMMEDIATE));
+                } while (nextIfAt(','));
             }
-            case "byte" -> {
+            case HALF -> {
                 do {
-                    final var aByte = Byte.parseByte(expectAndNext(IMMEDIATE).value());
-                    section().putByte(aByte);
-                } while (nextIfAt(","));
+                    section().putShort((short) expectValueAndNext(IMMEDIATE));
+                } while (nextIfAt(','));
             }
-            case "string", "ascii", "asciz" -> {
-                final var str = expectAndNext(STRING).value();
-
-                for (int i = 0; i < str.length(); i++)
-                    section().putByte((byte) str.charAt(i));
+            case BYTE -> {
+                do {
+                    section().putByte((byte) expectValueAndNext(IMMEDIATE));
+                } while (nextIfAt(','));
             }
-            case "skip" -> {
-                final var offset = Integer.parseInt(expectAndNext(IMMEDIATE).value());
-                for (int i = 0; i < offset; i++)
+            case STRING, ASCII, ASCIZ -> {
+                expect(STRING);
+                for (int i = 0; i < mLexer.getLength(); i++)
+                    section().putByte(mLexer.getByte(i));
+                mLexer.next();
+                // only .ascii leaves the string unterminated
+                if (directive != Directive.ASCII)
                     section().putByte((byte) 0);
             }
-            case "set" -> {
-                final var symbol = expectAndNext(SYMBOL).value();
-                expectAndNext(",");
-                final var value = Integer.parseInt(expectAndNext(IMMEDIATE).value());
-                mSymbolTable.computeIfAbsent(symbol, key -> new Symbol(section(), 0)).value(value);
+            case SKIP -> {
+                section().skip(expectValueAndNext(IMMEDIATE));
+            }
+            case SET -> {
+                expect(SYMBOL);
+                final var symbol = mSymbols.get(mSymbols.intern(mLexer));
+                mLexer.next();
+                expectAndNext(',');
+                final var value = expectValueAndNext(IMMEDIATE);
+                if (symbol.isDefined()) symbol.value(value);
+                else symbol.define(section(), value);
             }
-            default -> throw new IllegalStateException(String.format("undefined directive '%s'", directive));
         }
     }
 
-    private Operand nextOperand(boolean comma) {
-        if (comma) expectAndNext(",");
-
-        if (at(SYMBOL)) {
-            final var symbol = getAndNext().value();
-            return new OpSymbol(symbol);
-        }
+    /**
+     * @param target the instruction the operand goes into, a symbol is patched into its immediate
+     */
+    private Operand nextOperand(boolean comma, ISA target) {
+        if (comma) expectAndNext(',');
 
-        if (at(IMMEDIATE)) {
-            final var integer = Integer.parseInt(getAndNext().value());
-            return new OpImmediate(integer);
-        }
+        return switch (mLexer.getType()) {
+            case SYMBOL -> {
+                nextReference(false, target);
+                yield new OpImmediate(0);
+            }
+            case IMMEDIATE -> new OpImmediate(expectValueAndNext(IMMEDIATE));
+            case REGISTER -> new OpRegister(expectValueAndNext(REGISTER));
+            default -> throw mLexer.error("undefined operand type %s", mLexer);
+        };
+    }
 
-        if (at(REGISTER)) {
-            final var register = Integer.parseInt(getAndNext().value());
-            return new OpRegister(register);
-        }
+    /**
+     * Reads a symbol whose address becomes the immediate of the <code>target</code> instruction put next.
+     */
+    private void nextReference(boolean comma, ISA target) {
+        if (comma) expectAndNext(',');
 
-        throw new IllegalStateException(String.format("undefined operand type '%s'", mToken));
+        expect(SYMBOL);
+        section().use(mSymbols.intern(mLexer), target.itype);
+        mLexer.next();
     }
 }
@@ -0,0 +1,437 @@
+package io.scriptor.riscvm.asm;
+
+import io.scriptor.riscvm.core.ISA;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits assembly source into tokens. The lexer works directly on the bytes of the source, which may be a heap buffer
+ * or a memory-mapped file, and keeps only the current token. A token is a span of the source together with its decoded
+ * value, so lexing allocates nothing, only {@link #getText()} creates a string when the parser needs the name of a
+ * symbol.
+ * <p>
+ * Mnemonics, register names and directives are looked up in precomputed {@link Keywords} tables, all case-insensitive.
+ */
+public class Lexer {
+
+    public enum Type {
+        EOF,
+        /**
+         * a name, possibly a mnemonic, see {@link #getMnemonic()}
+         */
+        SYMBOL,
+        /**
+         * a name followed by a colon
+         */
+        LABEL,
+        /**
+         * a register, <code>x0</code> to <code>x31</code> or an alias, with its index as the value
+         */
+        REGISTER,
+        /**
+         * a name prefixed with a dot
+         */
+        DIRECTIVE,
+        IMMEDIATE,
+        /**
+         * a string literal, see {@link #getLength()} and {@link #getByte(int)}
+         */
+        STRING,
+        /**
+         * any other character, with the character as the value
+         */
+        OTHER,
+    }
+
+    /**
+     * An open-addressing hash table from the names of enum constants to the constants, which is queried with a span of
+     * the source. Names compare case-insensitively, and a dot in the source matches an underscore in the name, so the
+     * suffixed mnemonic <code>lr.w</code> finds {@link ISA#LR_W}.
+     */
+    static final class Keywords<E extends Enum<E>> {
+
+        private final Object[] mSlots;
+        private final int mMask;
+
+        Keywords(E[] values) {
+            mSlots = new Object[Integer.highestOneBit(values.length * 4 - 1) << 1];
+            mMask = mSlots.length - 1;
+            for (final var value : values) {
+                final var name = value.name();
+                var hash = 0;
+                for (int i = 0; i < name.length(); i++)
+                    hash = 31 * hash + fold(name.charAt(i));
+                var slot = mix(hash) & mMask;
+                while (mSlots[slot] != null)
+                    slot = (slot + 1) & mMask;
+                mSlots[slot] = value;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        E get(ByteBuffer source, int start, int end) {
+            var hash = 0;
+            for (int i = start; i < end; i++)
+                hash = 31 * hash + fold(source.get(i));
+
+            for (int slot = mix(hash) & mMask; mSlots[slot] != null; slot = (slot + 1) & mMask) {
+                final var value = (E) mSlots[slot];
+                final var name = value.name();
+                if (name.length() != end - start)
+                    continue;
+                var i = 0;
+                while (i < name.length() && name.charAt(i) == fold(source.get(start + i)))
+                    i++;
+                if (i == name.length())
+                    return value;
+            }
+            return null;
+        }
+
+        private static int fold(int c) {
+            if ('a' <= c && c <= 'z')
+                return c - ('a' - 'A');
+            if (c == '.')
+                return '_';
+            return c;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ hash >>> 16;
+        }
+    }
+
+    private static final Keywords<ISA> MNEMONICS = new Keywords<>(ISA.values());
+    private static final Keywords<ISA.RegisterAlias> REGISTERS = new Keywords<>(ISA.RegisterAlias.values());
+
+    private static final byte DIGIT = 1;
+    private static final byte XDIGIT = 2;
+    private static final byte ALPHA = 4;
+
+    /**
+     * character classes of the ascii range, indexed by the unsigned byte
+     */
+    private static final byte[] CLASSES = new byte[256];
+
+    static {
+        for (int c = '0'; c <= '9'; c++) CLASSES[c] = DIGIT | XDIGIT;
+        for (int c = 'a'; c <= 'f'; c++) CLASSES[c] = XDIGIT;
+        for (int c = 'A'; c <= 'F'; c++) CLASSES[c] = XDIGIT;
+        for (int c = 'a'; c <= 'z'; c++) CLASSES[c] |= ALPHA;
+        for (int c = 'A'; c <= 'Z'; c++) CLASSES[c] |= ALPHA;
+        CLASSES['_'] |= ALPHA;
+    }
+
+    private final ByteBuffer mSource;
+    private final int mLimit;
+    private int mPosition;
+    private int mLine = 1;
+
+    private Type mType;
+    private int mStart;
+    private int mEnd;
+    private int mValue;
+    private ISA mMnemonic;
+
+    /**
+     * the bytes of the current string literal with its escapes resolved, grown as needed
+     */
+    private byte[] mString = new byte[64];
+    private int mLength;
+
+    /**
+     * Lexes the bytes between the position and the limit of <code>source</code>, without modifying it.
+     */
+    public Lexer(ByteBuffer source) {
+        mSource = source;
+        mPosition = source.position();
+        mLimit = source.limit();
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * @return the value of an {@link Type#IMMEDIATE}, the index of a {@link Type#REGISTER} or the character of an
+     * {@link Type#OTHER}
+     */
+    public int getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return the instruction a {@link Type#SYMBOL} names, or null
+     */
+    public ISA getMnemonic() {
+        return mMnemonic;
+    }
+
+    /**
+     * @return the line the current token is in
+     */
+    public int getLine() {
+        return mLine;
+    }
+
+    /**
+     * @return the name of a {@link Type#SYMBOL}, {@link Type#LABEL} or {@link Type#DIRECTIVE}, without dot or colon
+     */
+    public String getText() {
+        final var bytes = new byte[mEnd - mStart];
+        mSource.get(mStart, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the number of bytes in a {@link Type#STRING}
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    public byte getByte(int index) {
+        return mString[index];
+    }
+
+    /**
+     * @return true if the current token is the character <code>c</code>
+     */
+    public boolean is(char c) {
+        return mType == Type.OTHER && mValue == c;
+    }
+
+    /**
+     * @return the constant of <code>keywords</code> the current token names, or null
+     */
+    <E extends Enum<E>> E lookup(Keywords<E> keywords) {
+        return keywords.get(mSource, mStart, mEnd);
+    }
+
+    /**
+     * @return the case-sensitive hash of the current name, see {@link #matches(String)}
+     */
+    int hash() {
+        var hash = 0;
+        for (int i = mStart; i < mEnd; i++)
+            hash = 31 * hash + (mSource.get(i) & 0xFF);
+        return hash ^ hash >>> 16;
+    }
+
+    /**
+     * @return true if the current name equals <code>name</code>
+     */
+    boolean matches(String name) {
+        if (name.length() != mEnd - mStart)
+            return false;
+        for (int i = 0; i < name.length(); i++)
+            if (name.charAt(i) != (mSource.get(mStart + i) & 0xFF))
+                return false;
+        return true;
+    }
+
+    public IllegalStateException error(String format, Object... args) {
+        return new IllegalStateException(String.format("line %d: %s", mLine, String.format(format, args)));
+    }
+
+    @Override
+    public String toString() {
+        if (mType == null)
+            return "start of file";
+        return switch (mType) {
+            case EOF -> "end of file";
+            case STRING -> String.format("%s \"%s\"", mType, new String(mString, 0, mLength, StandardCharsets.ISO_8859_1));
+            case REGISTER, IMMEDIATE -> String.format("%s %d", mType, mValue);
+            case OTHER -> String.format("%s '%c'", mType, (char) mValue);
+            default -> String.format("%s '%s'", mType, getText());
+        };
+    }
+
+    /**
+     * Advances to the next token.
+     */
+    public Type next() {
+        skip();
+        mMnemonic = null;
+        mStart = mEnd = mPosition;
+        if (mPosition >= mLimit)
+            return mType = Type.EOF;
+
+        final var c = read();
+
+        if (c == '.') {
+            if (!is(peek(), ALPHA))
+                throw error("expected a directive name after '.'");
+            mStart = mPosition;
+            mEnd = name();
+            return mType = Type.DIRECTIVE;
+        }
+
+        if (c == '-') {
+            if (next() != Type.IMMEDIATE)
+                throw error("expected an immediate after '-'");
+            mValue = -mValue;
+            return mType;
+        }
+
+        if (c == '"') {
+            mLength = 0;
+            while (true) {
+                if (mPosition >= mLimit)
+                    throw error("unterminated string");
+                var b = read();
+                if (b == '"')
+                    break;
+                if (b == '\n')
+                    mLine++;
+                if (b == '\\')
+                    b = escape(read());
+                if (mLength == mString.length)
+                    mString = Arrays.copyOf(mString, mLength * 2);
+                mString[mLength++] = (byte) b;
+            }
+            return mType = Type.STRING;
+        }
+
+        if (c == '\'') {
+            var chr = read();
+            if (chr == '\\')
+                chr = escape(read());
+            if (read() != '\'')
+                throw error("unterminated character");
+            mValue = chr;
+            return mType = Type.IMMEDIATE;
+        }
+
+        if (c == '0' && (peek() == 'x' || peek() == 'X')) {
+            mPosition++;
+            if (!is(peek(), XDIGIT))
+                throw error("expected hexadecimal digits after '0x'");
+            long value = 0;
+            while (is(peek(), XDIGIT)) {
+                final var d = read();
+                value = value << 4 | (is(d, DIGIT) ? d - '0' : (d | 0x20) - 'a' + 10);
+                if (value > 0xFFFFFFFFL)
+                    throw error("hexadecimal immediate out of range");
+            }
+            mValue = (int) value;
+            return mType = Type.IMMEDIATE;
+        }
+
+        if (is(c, DIGIT)) {
+            long value = c - '0';
+            while (is(peek(), DIGIT)) {
+                value = value * 10 + read() - '0';
+                if (value > Integer.MAX_VALUE)
+                    throw error("immediate out of range");
+            }
+            mValue = (int) value;
+            return mType = Type.IMMEDIATE;
+        }
+
+        if (is(c, ALPHA)) {
+            mEnd = name();
+            return mType = classify();
+        }
+
+        mValue = c;
+        return mType = Type.OTHER;
+    }
+
+    /**
+     * Classifies the name in the current span.
+     */
+    private Type classify() {
+        if (mSource.get(mStart) == 'x' && mEnd - mStart <= 3) {
+            var index = 0;
+            var i = mStart + 1;
+            while (i < mEnd && is(mSource.get(i) & 0xFF, DIGIT))
+                index = index * 10 + mSource.get(i++) - '0';
+            if (i == mEnd && i > mStart + 1 && index < 32) {
+                mValue = index;
+                return Type.REGISTER;
+            }
+        }
+
+        final var alias = REGISTERS.get(mSource, mStart, mEnd);
+        if (alias != null) {
+            mValue = alias.ordinal();
+            return Type.REGISTER;
+        }
+
+        var colon = mPosition;
+        while (colon < mLimit && (mSource.get(colon) == ' ' || mSource.get(colon) == '\t'))
+            colon++;
+        if (colon < mLimit && mSource.get(colon) == ':') {
+            mPosition = colon + 1;
+            return Type.LABEL;
+        }
+
+        // suffixed mnemonics like 'lr.w'
+        if (peek() == '.' && mPosition + 1 < mLimit && is(mSource.get(mPosition + 1) & 0xFF, ALPHA)) {
+            final var position = mPosition;
+            mPosition++;
+            final var end = name();
+            mMnemonic = MNEMONICS.get(mSource, mStart, end);
+            if (mMnemonic != null) {
+                mEnd = end;
+                return Type.SYMBOL;
+            }
+            mPosition = position;
+        }
+
+        mMnemonic = MNEMONICS.get(mSource, mStart, mEnd);
+        return Type.SYMBOL;
+    }
+
+    /**
+     * Skips whitespace and comments.
+     */
+    private void skip() {
+        while (mPosition < mLimit) {
+            final var c = mSource.get(mPosition) & 0xFF;
+            if (c == '#') {
+                while (mPosition < mLimit && mSource.get(mPosition) != '\n')
+                    mPosition++;
+            } else if (c <= 0x20) {
+                if (c == '\n')
+                    mLine++;
+                mPosition++;
+            } else return;
+        }
+    }
+
+    /**
+     * Reads the rest of a name, beginning at the current position.
+     *
+     * @return the end of the name
+     */
+    private int name() {
+        while (is(peek(), ALPHA | DIGIT))
+            mPosition++;
+        return mPosition;
+    }
+
+    private int read() {
+        return mPosition < mLimit ? mSource.get(mPosition++) & 0xFF : -1;
+    }
+
+    private int peek() {
+        return mPosition < mLimit ? mSource.get(mPosition) & 0xFF : -1;
+    }
+
+    private static boolean is(int c, int classes) {
+        return c >= 0 && (CLASSES[c] & classes) != 0;
+    }
+
+    private static int escape(int c) {
+        return switch (c) {
+            case 'n' -> '\n';
+            case 't' -> '\t';
+            case 'r' -> '\r';
+            default -> c;
+        };
+    }
+}
@@ -1,62 +1,189 @@
 package io.scriptor.riscvm.asm;
 
+import io.scriptor.riscvm.core.Instruction;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Vector;
+import java.util.Arrays;
 
+/**
+ * The bytes of one section, kept in chunks allocated as the section grows. Sections are only appended to, so a chunk
+ * that was never written holds only zeros and is not allocated at all, large <code>.skip</code> regions cost no memory.
+ */
 public class Section {
 
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * written in place of unallocated chunks
+     */
+    private static final byte[] ZEROS = new byte[CHUNK_SIZE];
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.nativeOrder());
+
+    /**
+     * The references of one immediate layout, pairs of the offset of the instruction and the id of the symbol.
+     */
+    private static final class Relocations {
+
+        private final Instruction.IType mLayout;
+        private int[] mEntries = new int[64];
+        private int mSize;
+
+        private Relocations(Instruction.IType layout) {
+            mLayout = layout;
+        }
+
+        private void add(int offset, int symbol) {
+            if (mSize == mEntries.length)
+                mEntries = Arrays.copyOf(mEntries, mSize * 2);
+            mEntries[mSize++] = offset;
+            mEntries[mSize++] = symbol;
+        }
+
+        private void link(ByteBuffer buffer, int base, SymbolTable symbols) {
+            for (int i = 0; i < mSize; i += 2) {
+                final var symbol = symbols.get(mEntries[i + 1]);
+                if (!symbol.isDefined())
+                    throw new IllegalStateException(String.format("undefined symbol '%s'", symbol.name()));
+
+                final var location = symbol.value() + symbol.section().base();
+                final var at = base + mEntries[i];
+                buffer.putInt(at, Instruction.setImm(mLayout, buffer.getInt(at), location));
+            }
+        }
+    }
+
     public final String name;
-    public final Map<String, List<Integer>> usage = new HashMap<>();
-    private final ByteBuffer mData;
+    private byte[][] mChunks = new byte[4][];
+    private int mSize;
+    private int mBase;
+
+    /**
+     * the 15 bit immediates of I and S type instructions
+     */
+    private final Relocations mShort = new Relocations(Instruction.IType.I);
+    /**
+     * the 20 bit immediates of U type instructions
+     */
+    private final Relocations mLong = new Relocations(Instruction.IType.U);
 
-    public Section(String name, int size) {
+    public Section(String name) {
         this.name = name;
-        this.mData = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
     }
 
     @Override
     public String toString() {
-        final var builder = new StringBuilder();
+        return "---------- Section ----------\n"
+                + name + ": " + counter() + " at " + String.format("%08X", mBase) + ", "
+                + (mShort.mSize + mLong.mSize) / 2 + " relocations";
+    }
 
-        builder.append("---------- Section ----------\n");
-        builder.append(name).append(": ").append(counter());
-        for (final var entry : usage.entrySet())
-            builder.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+    public int counter() {
+        return mSize;
+    }
 
-        return builder.toString();
+    /**
+     * @return the address of the section in the image, once it is laid out
+     */
+    public int base() {
+        return mBase;
     }
 
-    public int counter() {
-        return mData.position();
+    public void base(int base) {
+        mBase = base;
     }
 
+    /**
+     * Copies the section to its {@link #base()} in <code>buffer</code>, a chunk at a time.
+     */
     public void put(ByteBuffer buffer) {
-        mData.limit(mData.position());
-        mData.position(0);
-        while (mData.hasRemaining())
-            buffer.put(mData.get());
+        for (int offset = 0; offset < mSize; offset += CHUNK_SIZE) {
+            final var index = offset >>> CHUNK_SHIFT;
+            final var chunk = index < mChunks.length ? mChunks[index] : null;
+            buffer.put(mBase + offset, chunk != null ? chunk : ZEROS, 0, Math.min(CHUNK_SIZE, mSize - offset));
+        }
     }
 
     public Section putInt(int i) {
-        mData.putInt(i);
-        return this;
+        if ((mSize & CHUNK_MASK) <= CHUNK_SIZE - Integer.BYTES) {
+            INT.set(chunk(), mSize & CHUNK_MASK, i);
+            mSize += Integer.BYTES;
+            return this;
+        }
+        // straddles two chunks
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            putShort((short) i);
+            return putShort((short) (i >>> 16));
+        }
+        putShort((short) (i >>> 16));
+        return putShort((short) i);
     }
 
     public Section putShort(short s) {
-        mData.putShort(s);
-        return this;
+        if ((mSize & CHUNK_MASK) <= CHUNK_SIZE - Short.BYTES) {
+            SHORT.set(chunk(), mSize & CHUNK_MASK, s);
+            mSize += Short.BYTES;
+            return this;
+        }
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            putByte((byte) s);
+            return putByte((byte) (s >>> 8));
+        }
+        putByte((byte) (s >>> 8));
+        return putByte((byte) s);
     }
 
     public Section putByte(byte b) {
-        mData.put(b);
+        chunk()[mSize++ & CHUNK_MASK] = b;
+        return this;
+    }
+
+    /**
+     * Appends <code>count</code> zero bytes, without allocating them.
+     */
+    public Section skip(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException(String.format("cannot skip %d bytes", count));
+        mSize = Math.addExact(mSize, count);
         return this;
     }
 
-    public void use(String symbol) {
-        usage.computeIfAbsent(symbol, key -> new Vector<>()).add(counter());
+    /**
+     * @return the chunk the next byte goes into, allocated if needed
+     */
+    private byte[] chunk() {
+        final var index = mSize >>> CHUNK_SHIFT;
+        if (index >= mChunks.length)
+            mChunks = Arrays.copyOf(mChunks, Math.max(mChunks.length * 2, index + 1));
+        var chunk = mChunks[index];
+        if (chunk == null)
+            chunk = mChunks[index] = new byte[CHUNK_SIZE];
+        return chunk;
+    }
+
+    /**
+     * Records that the immediate of the instruction of type <code>itype</code> put next is the address of
+     * <code>symbol</code>.
+     */
+    public void use(int symbol, Instruction.IType itype) {
+        switch (itype) {
+            case I, S -> mShort.add(counter(), symbol);
+            case U -> mLong.add(counter(), symbol);
+            case R, E -> throw new IllegalStateException(String.format("%s type instructions take no symbol", itype));
+        }
+    }
+
+    /**
+     * Patches the references of the section in <code>buffer</code>, after all sections were put.
+     */
+    public void link(ByteBuffer buffer, SymbolTable symbols) {
+        mShort.link(buffer, mBase, symbols);
+        mLong.link(buffer, mBase, symbols);
     }
 }
@@ -1,14 +1,27 @@
 package io.scriptor.riscvm.asm;
 
 public final class Symbol {
-    private final Section mSection;
+    private final int mId;
+    private final String mName;
+    private Section mSection;
     private int mValue;
 
-    public Symbol(Section section, int value) {
-        mSection = section;
-        mValue = value;
+    public Symbol(int id, String name) {
+        mId = id;
+        mName = name;
+    }
+
+    public int id() {
+        return mId;
+    }
+
+    public String name() {
+        return mName;
     }
 
+    /**
+     * @return the section the value is relative to, null while the symbol is only referenced
+     */
     public Section section() {
         return mSection;
     }
@@ -20,4 +33,13 @@ public final class Symbol {
     public void value(int value) {
         mValue = value;
     }
+
+    public void define(Section section, int value) {
+        mSection = section;
+        mValue = value;
+    }
+
+    public boolean isDefined() {
+        return mSection != null;
+    }
 }
@@ -0,0 +1,63 @@
+package io.scriptor.riscvm.asm;
+
+import java.util.Arrays;
+
+/**
+ * Interns the symbols of a program into dense ids, in the order they first appear, whether as a definition or a
+ * reference. Names are looked up straight from the current token of the {@link Lexer}, so only a new symbol allocates
+ * its name.
+ */
+public class SymbolTable {
+
+    private Symbol[] mSymbols = new Symbol[64];
+    private int[] mHashes = new int[64];
+    private int mSize;
+    /**
+     * open-addressing hash table of ids plus one, zero marks a free slot
+     */
+    private int[] mSlots = new int[128];
+
+    /**
+     * @return the id of the symbol the current token names, which is created if it is new
+     */
+    int intern(Lexer lexer) {
+        final var hash = lexer.hash();
+        final var mask = mSlots.length - 1;
+        var slot = hash & mask;
+        for (int id; (id = mSlots[slot]) != 0; slot = (slot + 1) & mask)
+            if (mHashes[id - 1] == hash && lexer.matches(mSymbols[id - 1].name()))
+                return id - 1;
+
+        if (mSize == mSymbols.length) {
+            mSymbols = Arrays.copyOf(mSymbols, mSize * 2);
+            mHashes = Arrays.copyOf(mHashes, mSize * 2);
+        }
+        final var id = mSize++;
+        mSymbols[id] = new Symbol(id, lexer.getText());
+        mHashes[id] = hash;
+        mSlots[slot] = id + 1;
+
+        if (mSize * 2 > mSlots.length)
+            rehash();
+        return id;
+    }
+
+    public Symbol get(int id) {
+        return mSymbols[id];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private void rehash() {
+        mSlots = new int[mSlots.length * 2];
+        final var mask = mSlots.length - 1;
+        for (int id = 0; id < mSize; id++) {
+            var slot = mHashes[id] & mask;
+            while (mSlots[slot] != 0)
+                slot = (slot + 1) & mask;
+            mSlots[slot] = id + 1;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.scriptor.riscvm.bench;
+
+import io.scriptor.riscvm.asm.Assembler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembles generated sources of a given number of instructions, a mix of arithmetic, loads, stores and branches to
+ * labels, so symbols and relocations are part of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AssemblerBenchmark {
+
+    @Param({"1000", "100000"})
+    public int instructions;
+
+    private byte[] mSource;
+    private ByteBuffer mBuffer;
+
+    @Setup
+    public void setup() {
+        final var builder = new StringBuilder(".section .text\n_start:\tli t0, 0\n");
+        for (int i = 0; i < instructions; i += 4) {
+            builder.append("L").append(i).append(":\taddi t0, t0, ").append(i & 0x3FF).append('\n');
+            builder.append("\t\tsw t0, sp, 4\n");
+            builder.append("\t\tlw t1, sp, 4\n");
+            builder.append("\t\tbeq t0, t1, L").append(i).append("\t# loop\n");
+        }
+        builder.append(".section .data\ndata:\t.word 0\n");
+
+        mSource = builder.toString().getBytes(StandardCharsets.US_ASCII);
+        mBuffer = ByteBuffer.allocate(Integer.highestOneBit(instructions * 4) << 2).order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    public int assemble() {
+        return Assembler.assemble(new ByteArrayInputStream(mSource), mBuffer, "text", "data");
+    }
+}
@@ -0,0 +1,42 @@
+package io.scriptor.riscvm.bench;
+
+import io.scriptor.riscvm.vm.CPU;
+import io.scriptor.riscvm.vm.RiscVM;
+import io.scriptor.riscvm.vm.VMConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-steps the sample programs to their exit with {@link CPU#cycle()}, one program run per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CPUBenchmark {
+
+    @Param({"fib", "hello", "test"})
+    public String program;
+
+    private RiscVM mVM;
+    private CPU mCPU;
+
+    @Setup
+    public void setup() throws IOException {
+        mVM = Programs.load(program, VMConfig.Engine.INTERPRETER);
+        mCPU = mVM.getMachine().getCPU();
+    }
+
+    @Benchmark
+    public int cycle(Counters counters) {
+        mVM.resetCPU();
+        while (!mCPU.isHalted())
+            mCPU.cycle();
+        counters.instructions += mCPU.getRetired();
+        return mCPU.getExitCode();
+    }
+}
@@ -0,0 +1,22 @@
+package io.scriptor.riscvm.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Reports the retired guest instructions next to the benchmark score, as instructions per time unit.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Counters {
+
+    public long instructions;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        instructions = 0;
+    }
+}
@@ -0,0 +1,47 @@
+package io.scriptor.riscvm.bench;
+
+import io.scriptor.riscvm.vm.CPU;
+import io.scriptor.riscvm.vm.Machine;
+import io.scriptor.riscvm.vm.RiscVM;
+import io.scriptor.riscvm.vm.VMConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the sample programs to their exit with each engine, one program run per operation. Translated and compiled
+ * code is kept between operations, like in a long running guest.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+    @Param({"fib", "hello", "test", "stack"})
+    public String program;
+
+    @Param({"INTERPRETER", "THREADED", "JIT"})
+    public VMConfig.Engine engine;
+
+    private RiscVM mVM;
+    private Machine mMachine;
+    private CPU mCPU;
+
+    @Setup
+    public void setup() throws IOException {
+        mVM = Programs.load(program, engine);
+        mMachine = mVM.getMachine();
+        mCPU = mMachine.getCPU();
+    }
+
+    @Benchmark
+    public int run(Counters counters) {
+        mVM.resetCPU();
+        counters.instructions += mMachine.run(Long.MAX_VALUE);
+        return mCPU.getExitCode();
+    }
+}
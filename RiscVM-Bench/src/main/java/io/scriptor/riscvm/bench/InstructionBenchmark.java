@@ -0,0 +1,83 @@
+package io.scriptor.riscvm.bench;
+
+import io.scriptor.riscvm.core.Decoded;
+import io.scriptor.riscvm.core.ISA;
+import io.scriptor.riscvm.core.Instruction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of random, but valid, instructions of every encodable opcode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InstructionBenchmark {
+
+    private static final int COUNT = 1024;
+
+    private final Decoded[] mDecoded = new Decoded[COUNT];
+    private final int[] mWords = new int[COUNT];
+    private final Decoded mScratch = new Decoded();
+
+    @Setup
+    public void setup() {
+        final var opcodes = new ArrayList<ISA>();
+        for (final var isa : ISA.values())
+            if (isa.itype != null)
+                opcodes.add(isa);
+
+        final var random = new Random(42);
+        for (int i = 0; i < COUNT; i++) {
+            final var isa = opcodes.get(random.nextInt(opcodes.size()));
+            final var decoded = new Decoded();
+            decoded.isa = isa;
+            decoded.itype = isa.itype;
+            decoded.opcode = isa.ordinal();
+            decoded.rd = random.nextInt(32);
+            decoded.rs1 = random.nextInt(32);
+            decoded.rs2 = random.nextInt(32);
+            decoded.imm = random.nextInt(1 << 12);
+            mDecoded[i] = decoded;
+            mWords[i] = decoded.pack();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public int encode() {
+        int hash = 0;
+        for (final var decoded : mDecoded)
+            hash = 31 * hash + decoded.pack();
+        return hash;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public int decode() {
+        final var decoded = mScratch;
+        int hash = 0;
+        for (final var word : mWords)
+            if (decoded.decode(word))
+                hash = 31 * hash + decoded.opcode + decoded.rd + decoded.rs1 + decoded.rs2 + decoded.imm;
+        return hash;
+    }
+
+    /**
+     * Decoding into a new {@link Instruction} for every word, as done by the disassembly views.
+     */
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public int valueOf() {
+        int hash = 0;
+        for (final var word : mWords)
+            hash = 31 * hash + Instruction.valueOf(word).imm;
+        return hash;
+    }
+}
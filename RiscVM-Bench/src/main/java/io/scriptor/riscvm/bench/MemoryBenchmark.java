@@ -0,0 +1,103 @@
+package io.scriptor.riscvm.bench;
+
+import io.scriptor.riscvm.vm.Machine;
+import io.scriptor.riscvm.vm.Memory;
+import io.scriptor.riscvm.vm.VMConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads and stores of every width, sweeping sequentially over a window of {@link #WINDOW} bytes. All pages of the
+ * window are written before measuring, so paged memory takes its allocated path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemoryBenchmark {
+
+    private static final int SIZE = 1 << 20;
+    private static final int WINDOW = 1 << 16;
+    private static final int ACCESSES = 1024;
+
+    @Param({"DIRECT", "PAGED"})
+    public VMConfig.MemoryType type;
+
+    private Memory mMemory;
+    private int mOffset;
+
+    @Setup
+    public void setup() {
+        mMemory = new Machine(SIZE, VMConfig.Engine.INTERPRETER, 1, type).getMemory();
+        final var data = new byte[WINDOW];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        mMemory.write(0, data, 0, data.length);
+    }
+
+    /**
+     * @return the start of the next sweep, so consecutive operations do not hit the same addresses
+     */
+    private int next(int stride) {
+        final var offset = mOffset;
+        mOffset = (offset + ACCESSES * stride) & (WINDOW - 1);
+        return offset;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int getWord() {
+        final var base = next(4);
+        int sum = 0;
+        for (int i = 0; i < ACCESSES; i++)
+            sum += mMemory.getWord((base + (i << 2)) & (WINDOW - 1));
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public void setWord() {
+        final var base = next(4);
+        for (int i = 0; i < ACCESSES; i++)
+            mMemory.setWord((base + (i << 2)) & (WINDOW - 1), i);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int getHalf() {
+        final var base = next(2);
+        int sum = 0;
+        for (int i = 0; i < ACCESSES; i++)
+            sum += mMemory.getHalf((base + (i << 1)) & (WINDOW - 1));
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public void setHalf() {
+        final var base = next(2);
+        for (int i = 0; i < ACCESSES; i++)
+            mMemory.setHalf((base + (i << 1)) & (WINDOW - 1), (short) i);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int getByte() {
+        final var base = next(1);
+        int sum = 0;
+        for (int i = 0; i < ACCESSES; i++)
+            sum += mMemory.getByte((base + i) & (WINDOW - 1));
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public void setByte() {
+        final var base = next(1);
+        for (int i = 0; i < ACCESSES; i++)
+            mMemory.setByte((base + i) & (WINDOW - 1), (byte) i);
+    }
+}
@@ -0,0 +1,37 @@
+package io.scriptor.riscvm.bench;
+
+import io.scriptor.riscvm.core.ISA;
+import io.scriptor.riscvm.vm.RiscVM;
+import io.scriptor.riscvm.vm.Syscalls;
+import io.scriptor.riscvm.vm.VMConfig;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+
+/**
+ * Loads the sample programs shipped with the core module and the benchmarks.
+ */
+final class Programs {
+
+    static final int MEMORY = 64 * 1024;
+
+    private Programs() {
+    }
+
+    /**
+     * @return a vm with the program <code>name</code>.s assembled into it, writing to the console is discarded
+     */
+    static RiscVM load(String name, VMConfig.Engine engine) throws IOException {
+        final var vm = new RiscVM(new VMConfig(MEMORY, engine, "text", "rodata", "data", "stack"));
+        // printing would dominate the measurement, pretend everything got written
+        vm.getMachine().getSyscalls().register(Syscalls.WRITE, cpu -> cpu.get(ISA.RegisterAlias.A2));
+
+        final var resource = "/" + name + ".s";
+        try (final var stream = Programs.class.getResourceAsStream(resource)) {
+            if (stream == null)
+                throw new IOException(String.format("missing sample program %s", resource));
+            vm.assemble(new BufferedInputStream(stream));
+        }
+        return vm;
+    }
+}
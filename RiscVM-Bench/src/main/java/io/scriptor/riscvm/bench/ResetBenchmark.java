@@ -0,0 +1,40 @@
+package io.scriptor.riscvm.bench;
+
+import io.scriptor.riscvm.vm.Machine;
+import io.scriptor.riscvm.vm.Memory;
+import io.scriptor.riscvm.vm.VMConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Memory#reset()} of a whole memory. Paged memory drops its pages, so its reset is measured together with
+ * writing one page back, otherwise only the first operation would find anything to drop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResetBenchmark {
+
+    @Param({"65536", "16777216"})
+    public int size;
+
+    @Param({"DIRECT", "PAGED"})
+    public VMConfig.MemoryType type;
+
+    private Memory mMemory;
+
+    @Setup
+    public void setup() {
+        mMemory = new Machine(size, VMConfig.Engine.INTERPRETER, 1, type).getMemory();
+    }
+
+    @Benchmark
+    public void reset() {
+        mMemory.setWord(0, 1);
+        mMemory.reset();
+    }
+}
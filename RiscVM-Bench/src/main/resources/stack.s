@@ -0,0 +1,35 @@
+# fib, but with its stack behind the code in the same page, so every push stores into a page holding code
+.section .text
+_start:	la sp, stack
+		
+		li a0, 18
+		jr fib
+		
+		li a7, 93
+		ecall		# exit with result code
+		
+fib:	push ra
+		push s0
+		push s1
+		
+		li t0, 2
+		blt a0, t0, done
+		
+		subi s0, a0, 1
+		subi s1, a0, 2
+		
+		mv a0, s0
+		jr fib
+		mv s0, a0
+		
+		mv a0, s1
+		jr fib
+		add a0, s0, a0
+		
+done:	pop s1
+		pop s0
+		pop ra
+		ret
+		
+		.skip 0x200
+stack:	.word 0
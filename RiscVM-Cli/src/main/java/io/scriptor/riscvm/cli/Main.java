@@ -0,0 +1,205 @@
+package io.scriptor.riscvm.cli;
+
+import io.scriptor.riscvm.vm.Profile;
+import io.scriptor.riscvm.vm.RiscVM;
+import io.scriptor.riscvm.vm.RunResult;
+import io.scriptor.riscvm.vm.Tracer;
+import io.scriptor.riscvm.vm.VMConfig;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import static io.scriptor.riscvm.core.Util.kb;
+
+/**
+ * Assembles a program and runs it at full speed without any user interface. The guest's standard streams are the
+ * process' standard streams, the execution summary goes to stderr. The process exits with the guest's exit code, or
+ * with {@link #EXIT_BUDGET} if the budget ran out and {@link #EXIT_FAULT} if the guest faulted or broke.
+ */
+public class Main {
+
+    public static final int EXIT_USAGE = 2;
+    public static final int EXIT_BUDGET = 124;
+    public static final int EXIT_FAULT = 125;
+
+    private static final String USAGE = """
+            usage: riscvm [options] <file.s>
+              -m, --memory <size>       memory size in bytes, k and m suffixes allowed (default 64k)
+              -e, --engine <engine>     interpreter, threaded or jit (default jit)
+              -t, --memory-type <type>  direct or paged (default direct)
+              -H, --harts <count>       number of harts, each runs on its own thread (default 1)
+              -b, --budget <count>      maximum number of instructions per hart (default unlimited)
+              -s, --sections <names>    comma separated section order (default text,rodata,data,bss)
+              -r, --root <directory>    directory guest paths are resolved against (default current directory)
+              -p, --profile             print the hottest instructions of each hart after the run
+              -T, --trace <file>        record every retired instruction, with more harts into <file>.<hart>
+              -q, --quiet               do not print the summary
+              -h, --help                print this help
+            """;
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * @return the exit code for the process
+     */
+    public static int run(String[] args) {
+        var memory = kb(64);
+        var engine = VMConfig.Engine.JIT;
+        var memoryType = VMConfig.MemoryType.DIRECT;
+        var harts = 1;
+        var budget = Long.MAX_VALUE;
+        var sections = new String[]{"text", "rodata", "data", "bss"};
+        Path root = null;
+        var profile = false;
+        Path trace = null;
+        var quiet = false;
+        Path file = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-m", "--memory" -> memory = parseSize(value(args, ++i));
+                    case "-e", "--engine" -> engine = VMConfig.Engine.valueOf(value(args, ++i).toUpperCase(Locale.ROOT));
+                    case "-t", "--memory-type" ->
+                            memoryType = VMConfig.MemoryType.valueOf(value(args, ++i).toUpperCase(Locale.ROOT));
+                    case "-H", "--harts" -> harts = Integer.parseInt(value(args, ++i));
+                    case "-b", "--budget" -> budget = Long.parseLong(value(args, ++i));
+                    case "-s", "--sections" -> sections = value(args, ++i).split(",");
+                    case "-r", "--root" -> root = Path.of(value(args, ++i));
+                    case "-p", "--profile" -> profile = true;
+                    case "-T", "--trace" -> trace = Path.of(value(args, ++i));
+                    case "-q", "--quiet" -> quiet = true;
+                    case "-h", "--help" -> {
+                        System.out.print(USAGE);
+                        return 0;
+                    }
+                    default -> {
+                        if (args[i].startsWith("-") || file != null)
+                            throw new IllegalArgumentException(String.format("unexpected argument '%s'", args[i]));
+                        file = Path.of(args[i]);
+                    }
+                }
+            }
+            if (file == null)
+                throw new IllegalArgumentException("no input file");
+            if (memoryType == VMConfig.MemoryType.MAPPED || memoryType == VMConfig.MemoryType.MAPPED_PRIVATE)
+                throw new IllegalArgumentException("mapped memory is not supported for assembled programs");
+        } catch (IllegalArgumentException e) {
+            System.err.printf("riscvm: %s%n", e.getMessage());
+            System.err.print(USAGE);
+            return EXIT_USAGE;
+        }
+
+        final var vm = new RiscVM(new VMConfig(memory, engine, harts, memoryType, sections));
+        final var machine = vm.getMachine();
+        if (root != null)
+            machine.getSyscalls().setRoot(root);
+
+        // the lexer reads the mapped file directly, without copying it onto the heap
+        try (final var channel = FileChannel.open(file)) {
+            vm.assemble(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("riscvm: failed to assemble %s: %s%n", file, e);
+            return EXIT_USAGE;
+        }
+
+        final var profiles = new Profile[harts];
+        if (profile)
+            for (int hart = 0; hart < harts; hart++)
+                machine.getCPU(hart).setProfile(profiles[hart] = new Profile());
+
+        final var tracers = new Tracer[harts];
+        try {
+            if (trace != null)
+                for (int hart = 0; hart < harts; hart++) {
+                    final var path = harts == 1 ? trace : trace.resolveSibling(trace.getFileName() + "." + hart);
+                    machine.getCPU(hart).setTracer(tracers[hart] = new Tracer(path, hart));
+                }
+        } catch (IOException e) {
+            System.err.printf("riscvm: failed to open trace: %s%n", e);
+            closeTracers(tracers);
+            return EXIT_USAGE;
+        }
+
+        final var start = System.nanoTime();
+        final RunResult[] results;
+        try {
+            results = harts == 1 ? new RunResult[]{vm.run(budget)} : vm.runHarts(budget);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_FAULT;
+        } finally {
+            closeTracers(tracers);
+        }
+        final var nanos = System.nanoTime() - start;
+
+        if (!quiet)
+            summary(results, nanos);
+        if (profile)
+            for (int hart = 0; hart < harts; hart++) {
+                System.err.printf("----------- Profile %2d ------%n", hart);
+                System.err.print(profiles[hart].report(machine.getMemory(), 20));
+            }
+
+        return exitCode(results);
+    }
+
+    private static void closeTracers(Tracer[] tracers) {
+        for (final var tracer : tracers)
+            if (tracer != null) {
+                try {
+                    tracer.close();
+                } catch (IOException e) {
+                    System.err.printf("riscvm: failed to write trace: %s%n", e);
+                }
+            }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException(String.format("missing value for '%s'", args[i - 1]));
+        return args[i];
+    }
+
+    private static int parseSize(String value) {
+        final var lower = value.toLowerCase(Locale.ROOT);
+        if (lower.endsWith("k"))
+            return Math.multiplyExact(Integer.parseInt(lower.substring(0, lower.length() - 1)), 1024);
+        if (lower.endsWith("m"))
+            return Math.multiplyExact(Integer.parseInt(lower.substring(0, lower.length() - 1)), 1024 * 1024);
+        return Integer.parseInt(lower);
+    }
+
+    private static void summary(RunResult[] results, long nanos) {
+        long retired = 0;
+        for (final var result : results)
+            retired += result.retired();
+
+        System.err.println("----------- Summary ---------");
+        for (int hart = 0; hart < results.length; hart++)
+            System.err.printf("Hart %d: %s%n", hart, results[hart]);
+        System.err.printf("Retired: %d%n", retired);
+        System.err.printf("Time:    %.3f ms%n", nanos / 1e6);
+        System.err.printf("MIPS:    %.2f%n", nanos > 0 ? retired * 1e3 / nanos : 0.0);
+    }
+
+    /**
+     * @return the exit code of the first hart, unless any hart faulted or ran out of budget
+     */
+    private static int exitCode(RunResult[] results) {
+        for (final var result : results)
+            switch (result.status()) {
+                case FAULT, BREAKPOINT -> {
+                    return EXIT_FAULT;
+                }
+                case BUDGET_EXHAUSTED -> {
+                    return EXIT_BUDGET;
+                }
+            }
+        return results[0].exitCode();
+    }
+}
@@ -0,0 +1,637 @@
+package io.scriptor.riscvm.vm;
+
+import io.scriptor.riscvm.core.ISA;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates hot {@link ThreadedEngine.Block}s into JVM bytecode and loads them as hidden classes, so HotSpot can
+ * optimize the guest code like any other Java method. Guest registers live in JVM locals while the block runs and are
+ * written back on every exit, including exceptions thrown by loads, stores and divisions.
+ * <p>
+ * The generated classes target class file version 49, which still allows branches without stack map frames.
+ * <p>
+ * Layout of the generated <code>run(int[] registers, Memory memory, Block block, CPU cpu)</code> method:
+ * <pre>
+ *   0: this
+ *   1: registers
+ *   2: memory
+ *   3: block
+ *   4: cpu
+ *   5: index of the instruction that may throw next
+ *   6: caught throwable
+ *   7: address of the last load or store, only used by watched blocks
+ *   8..: guest registers used by the block
+ * </pre>
+ */
+final class BlockCompiler {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String CLASS_NAME = "io/scriptor/riscvm/vm/CompiledBlock";
+    private static final String COMPILED = "io/scriptor/riscvm/vm/ThreadedEngine$Compiled";
+    private static final String MEMORY = "io/scriptor/riscvm/vm/Memory";
+    private static final String BLOCK = "io/scriptor/riscvm/vm/ThreadedEngine$Block";
+    private static final String CPU = "io/scriptor/riscvm/vm/CPU";
+    private static final String ISA_CLASS = "io/scriptor/riscvm/core/ISA";
+
+    private static final int PC = ISA.RegisterAlias.PC.ordinal() - 1;
+
+    private static final int LOCAL_CPU = 4;
+    private static final int LOCAL_INDEX = 5;
+    private static final int LOCAL_THROWABLE = 6;
+    private static final int LOCAL_ADDRESS = 7;
+    private static final int LOCAL_FIRST = 8;
+
+    /**
+     * @return true if the compiler can translate the given instruction
+     */
+    static boolean isCompilable(ISA op) {
+        return switch (op) {
+            case AND, OR, XOR, ANDI, ORI, XORI,
+                    SLL, SRL, SRA, SLLI, SRLI, SRAI,
+                    ADD, SUB, ADDI, SUBI, MUL, DIV, REM,
+                    LW, LH, LB, SW, SH, SB,
+                    BEQ, BNE, BLT, BGE, JAL, JALR,
+                    SLT, SLTI -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Compiles the first <code>count</code> instructions of the block starting at <code>start</code>. The returned
+     * code sets the program counter on every exit and returns the number of instructions it retired. With
+     * <code>watched</code> set, it checks every load and store against the {@link Watchpoints} and leaves as soon as
+     * the hart stopped.
+     */
+    static ThreadedEngine.Compiled compile(int start, ISA[] ops, int[] rd, int[] rs1, int[] rs2, int[] imm, int count,
+                                           boolean watched) {
+        final var bytes = new BlockCompiler(start, ops, rd, rs1, rs2, imm, count, watched).toByteArray();
+        try {
+            final var lookup = LOOKUP.defineHiddenClass(bytes, true);
+            return (ThreadedEngine.Compiled) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException(String.format("failed to compile block at %08X", start), t);
+        }
+    }
+
+    private final int mStart;
+    private final ISA[] mOps;
+    private final int[] mRd;
+    private final int[] mRs1;
+    private final int[] mRs2;
+    private final int[] mImm;
+    private final int mCount;
+    private final boolean mWatched;
+
+    private final int[] mLocals = new int[32];
+    private final boolean[] mDirty = new boolean[32];
+    private int mMaxLocals = LOCAL_FIRST;
+
+    private final ConstantPool mPool = new ConstantPool();
+    private final Code mCode = new Code();
+
+    private BlockCompiler(int start, ISA[] ops, int[] rd, int[] rs1, int[] rs2, int[] imm, int count, boolean watched) {
+        mStart = start;
+        mOps = ops;
+        mRd = rd;
+        mRs1 = rs1;
+        mRs2 = rs2;
+        mImm = imm;
+        mCount = count;
+        mWatched = watched;
+    }
+
+    private byte[] toByteArray() {
+        final var thisClass = mPool.classRef(CLASS_NAME);
+        final var superClass = mPool.classRef("java/lang/Object");
+        final var iface = mPool.classRef(COMPILED);
+        final var objectInit = mPool.methodRef("java/lang/Object", "<init>", "()V");
+        final var codeName = mPool.utf8("Code");
+        final var initName = mPool.utf8("<init>");
+        final var initDesc = mPool.utf8("()V");
+        final var runName = mPool.utf8("run");
+        final var runDesc = mPool.utf8("([IL" + MEMORY + ";L" + BLOCK + ";L" + CPU + ";)I");
+
+        generate();
+
+        try {
+            final var bytes = new ByteArrayOutputStream();
+            final var out = new DataOutputStream(bytes);
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            mPool.write(out);
+
+            out.writeShort(0x0010 | 0x0020); // final, super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0); // fields
+
+            out.writeShort(2); // methods
+
+            final byte[] init = {0x2A, (byte) 0xB7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xB1};
+            out.writeShort(0x0001);
+            out.writeShort(initName);
+            out.writeShort(initDesc);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + init.length);
+            out.writeShort(1);
+            out.writeShort(1);
+            out.writeInt(init.length);
+            out.write(init);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(0x0001);
+            out.writeShort(runName);
+            out.writeShort(runDesc);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + mCode.size() + 8);
+            out.writeShort(8);
+            out.writeShort(mMaxLocals);
+            out.writeInt(mCode.size());
+            out.write(mCode.mBytes, 0, mCode.size());
+            out.writeShort(1);
+            out.writeShort(mCode.mTryStart);
+            out.writeShort(mCode.mTryEnd);
+            out.writeShort(mCode.mHandler);
+            out.writeShort(0); // any
+            out.writeShort(0);
+
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void generate() {
+        for (int i = 0; i < mCount; i++) {
+            use(mRd[i]);
+            use(mRs1[i]);
+            use(mRs2[i]);
+        }
+
+        // load all used registers into locals, so every local is assigned before the first instruction may throw
+        for (int r = 1; r < mLocals.length; r++) {
+            if (mLocals[r] == 0) continue;
+            mCode.op(0x2B); // aload_1
+            mCode.constant(r - 1);
+            mCode.op(0x2E); // iaload
+            mCode.store(mLocals[r]);
+        }
+        mCode.constant(0);
+        mCode.store(LOCAL_INDEX);
+
+        mCode.mTryStart = mCode.size();
+
+        boolean branch = false;
+        for (int i = 0; i < mCount; i++)
+            branch = instruction(i);
+
+        if (!branch)
+            exit(() -> mCode.constant(mStart + 4 * mCount), mCount);
+
+        mCode.mTryEnd = mCode.size();
+
+        // exception handler: write back, point the program counter behind the faulting instruction and rethrow
+        mCode.mHandler = mCode.size();
+        mCode.op(0x3A); // astore
+        mCode.u1(LOCAL_THROWABLE);
+        writeBack();
+        mCode.op(0x2B); // aload_1
+        mCode.constant(PC);
+        mCode.load(LOCAL_INDEX);
+        mCode.constant(1);
+        mCode.op(0x60); // iadd
+        mCode.constant(2);
+        mCode.op(0x78); // ishl
+        mCode.constant(mStart);
+        mCode.op(0x60); // iadd
+        mCode.op(0x4F); // iastore
+        mCode.op(0x19); // aload
+        mCode.u1(LOCAL_THROWABLE);
+        mCode.op(0xBF); // athrow
+
+        mCode.resolve();
+    }
+
+    /**
+     * @return true if the instruction leaves the block
+     */
+    private boolean instruction(int i) {
+        final var op = mOps[i];
+        final var next = mStart + 4 * (i + 1);
+
+        switch (op) {
+            case LW, LH, LB, SW, SH, SB, DIV, REM -> {
+                mCode.constant(i);
+                mCode.store(LOCAL_INDEX);
+            }
+        }
+
+        switch (op) {
+            case AND -> binary(i, 0x7E);
+            case OR -> binary(i, 0x80);
+            case XOR -> binary(i, 0x82);
+            case SLL -> binary(i, 0x78);
+            case SRL -> binary(i, 0x7C);
+            case SRA -> binary(i, 0x7A);
+            case ADD -> binary(i, 0x60);
+            case SUB -> binary(i, 0x64);
+            case MUL -> binary(i, 0x68);
+            case DIV -> binary(i, 0x6C);
+            case REM -> binary(i, 0x70);
+
+            case ANDI -> immediate(i, 0x7E);
+            case ORI -> immediate(i, 0x80);
+            case XORI -> immediate(i, 0x82);
+            case SLLI -> immediate(i, 0x78);
+            case SRLI -> immediate(i, 0x7C);
+            case SRAI -> immediate(i, 0x7A);
+            case ADDI -> immediate(i, 0x60);
+            case SUBI -> immediate(i, 0x64);
+
+            case LW -> load(i, "getWord", "(I)I", next);
+            case LH -> load(i, "getHalf", "(I)S", next);
+            case LB -> load(i, "getByte", "(I)B", next);
+            case SW -> store(i, 0, "setWord", "(II)V", next);
+            case SH -> store(i, 0x93, "setHalf", "(IS)V", next);
+            case SB -> store(i, 0x91, "setByte", "(IB)V", next);
+
+            case SLT -> {
+                read(mRs1[i]);
+                read(mRs2[i]);
+                lessThan(i);
+            }
+            case SLTI -> {
+                read(mRs1[i]);
+                mCode.constant(mImm[i]);
+                lessThan(i);
+            }
+
+            case BEQ -> branch(i, 0x9F, next);
+            case BNE -> branch(i, 0xA0, next);
+            case BLT -> branch(i, 0xA1, next);
+            case BGE -> branch(i, 0xA2, next);
+            case JAL -> {
+                mCode.constant(next);
+                write(mRd[i]);
+                exit(() -> mCode.constant(mImm[i]), mCount);
+            }
+            case JALR -> {
+                mCode.constant(next);
+                write(mRd[i]);
+                exit(() -> {
+                    read(mRs1[i]);
+                    mCode.constant(mImm[i]);
+                    mCode.op(0x60); // iadd
+                }, mCount);
+            }
+
+            default -> throw new IllegalStateException(String.format("cannot compile %s", op));
+        }
+
+        return switch (op) {
+            case BEQ, BNE, BLT, BGE, JAL, JALR -> true;
+            default -> false;
+        };
+    }
+
+    private void use(int r) {
+        if (r == 0 || mLocals[r] != 0) return;
+        mLocals[r] = mMaxLocals++;
+    }
+
+    private void read(int r) {
+        if (r == 0) mCode.constant(0);
+        else mCode.load(mLocals[r]);
+    }
+
+    private void write(int r) {
+        if (r == 0) {
+            mCode.op(0x57); // pop
+            return;
+        }
+        mCode.store(mLocals[r]);
+        mDirty[r] = true;
+    }
+
+    private void writeBack() {
+        for (int r = 1; r < mDirty.length; r++) {
+            if (!mDirty[r]) continue;
+            mCode.op(0x2B); // aload_1
+            mCode.constant(r - 1);
+            mCode.load(mLocals[r]);
+            mCode.op(0x4F); // iastore
+        }
+    }
+
+    /**
+     * Writes back all registers, stores the program counter pushed by <code>pc</code> and returns
+     * <code>retired</code>.
+     */
+    private void exit(Runnable pc, int retired) {
+        writeBack();
+        mCode.op(0x2B); // aload_1
+        mCode.constant(PC);
+        pc.run();
+        mCode.op(0x4F); // iastore
+        mCode.constant(retired);
+        mCode.op(0xAC); // ireturn
+    }
+
+    private void binary(int i, int opcode) {
+        read(mRs1[i]);
+        read(mRs2[i]);
+        mCode.op(opcode);
+        write(mRd[i]);
+    }
+
+    private void immediate(int i, int opcode) {
+        read(mRs1[i]);
+        mCode.constant(mImm[i]);
+        mCode.op(opcode);
+        write(mRd[i]);
+    }
+
+    private void load(int i, String name, String descriptor, int next) {
+        mCode.op(0x2C); // aload_2
+        address(mRs1[i], mImm[i]);
+        mCode.invoke(mPool.methodRef(MEMORY, name, descriptor));
+        write(mRd[i]);
+        watch(i, next);
+    }
+
+    private void store(int i, int narrow, String name, String descriptor, int next) {
+        mCode.op(0x2C); // aload_2
+        address(mRs2[i], mImm[i]);
+        read(mRs1[i]);
+        if (narrow != 0) mCode.op(narrow);
+        mCode.invoke(mPool.methodRef(MEMORY, name, descriptor));
+        watch(i, next);
+
+        // leave the block if the store hit its own page
+        final var valid = mCode.label();
+        mCode.op(0x2D); // aload_3
+        mCode.op(0xB4); // getfield
+        mCode.u2(mPool.fieldRef(BLOCK, "valid", "Z"));
+        mCode.jump(0x9A, valid); // ifne
+        exit(() -> mCode.constant(next), i + 1);
+        mCode.bind(valid);
+    }
+
+    /**
+     * Pushes the address <code>base + offset</code>, and keeps it for {@link #watch(int, int)} in watched blocks, as
+     * the base register may be overwritten by the access itself.
+     */
+    private void address(int base, int offset) {
+        read(base);
+        mCode.constant(offset);
+        mCode.op(0x60); // iadd
+        if (!mWatched) return;
+        mCode.op(0x59); // dup
+        mCode.store(LOCAL_ADDRESS);
+    }
+
+    /**
+     * Checks the access of instruction <code>i</code> against the watchpoints in watched blocks, and leaves the block
+     * behind it if the hart stopped. The registers are written back first, so a callback sees them.
+     */
+    private void watch(int i, int next) {
+        if (!mWatched) return;
+        final var unwatched = mCode.label();
+        mCode.op(0x2C); // aload_2
+        mCode.load(LOCAL_ADDRESS);
+        mCode.constant(4);
+        mCode.invoke(mPool.methodRef(MEMORY, "isWatched", "(II)Z"));
+        mCode.jump(0x99, unwatched); // ifeq
+        writeBack();
+        mCode.op(0x19); // aload
+        mCode.u1(LOCAL_CPU);
+        mCode.constant(next - 4);
+        mCode.op(0xB2); // getstatic
+        mCode.u2(mPool.fieldRef(ISA_CLASS, mOps[i].name(), "L" + ISA_CLASS + ";"));
+        mCode.load(LOCAL_ADDRESS);
+        mCode.invoke(mPool.methodRef(CPU, "watch", "(IL" + ISA_CLASS + ";I)Z"));
+        mCode.jump(0x99, unwatched); // ifeq
+        exit(() -> mCode.constant(next), i + 1);
+        mCode.bind(unwatched);
+    }
+
+    private void lessThan(int i) {
+        final var otherwise = mCode.label();
+        final var end = mCode.label();
+        mCode.jump(0xA2, otherwise); // if_icmpge
+        mCode.constant(1);
+        mCode.jump(0xA7, end); // goto
+        mCode.bind(otherwise);
+        mCode.constant(0);
+        mCode.bind(end);
+        write(mRd[i]);
+    }
+
+    private void branch(int i, int opcode, int next) {
+        final var taken = mCode.label();
+        writeBack();
+        mCode.op(0x2B); // aload_1
+        mCode.constant(PC);
+        read(mRs1[i]);
+        read(mRs2[i]);
+        mCode.jump(opcode, taken);
+        mCode.constant(next);
+        mCode.op(0x4F); // iastore
+        mCode.constant(mCount);
+        mCode.op(0xAC); // ireturn
+        mCode.bind(taken);
+        mCode.constant(mImm[i]);
+        mCode.op(0x4F); // iastore
+        mCode.constant(mCount);
+        mCode.op(0xAC); // ireturn
+    }
+
+    private static final class ConstantPool {
+
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+        private final Map<String, Integer> mEntries = new HashMap<>();
+        private int mCount = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, out -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int integer(int value) {
+            return entry("I" + value, out -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        int classRef(String name) {
+            final var index = utf8(name);
+            return entry("C" + name, out -> {
+                out.writeByte(7);
+                out.writeShort(index);
+            });
+        }
+
+        int nameAndType(String name, String descriptor) {
+            final var n = utf8(name);
+            final var d = utf8(descriptor);
+            return entry("N" + name + ' ' + descriptor, out -> {
+                out.writeByte(12);
+                out.writeShort(n);
+                out.writeShort(d);
+            });
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return ref(10, owner, name, descriptor);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return ref(9, owner, name, descriptor);
+        }
+
+        private int ref(int tag, String owner, String name, String descriptor) {
+            final var c = classRef(owner);
+            final var nt = nameAndType(name, descriptor);
+            return entry("R" + tag + owner + '.' + name + descriptor, out -> {
+                out.writeByte(tag);
+                out.writeShort(c);
+                out.writeShort(nt);
+            });
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(mCount);
+            mBytes.writeTo(out);
+        }
+
+        @FunctionalInterface
+        private interface Writer {
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private int entry(String key, Writer writer) {
+            final var index = mEntries.get(key);
+            if (index != null)
+                return index;
+
+            try {
+                writer.write(mOut);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            mEntries.put(key, mCount);
+            return mCount++;
+        }
+    }
+
+    private final class Code {
+
+        private byte[] mBytes = new byte[256];
+        private int mSize;
+
+        private final List<int[]> mJumps = new ArrayList<>();
+        private int[] mLabels = new int[16];
+        private int mLabelCount;
+
+        int mTryStart;
+        int mTryEnd;
+        int mHandler;
+
+        int size() {
+            return mSize;
+        }
+
+        void u1(int value) {
+            if (mSize == mBytes.length)
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            mBytes[mSize++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void constant(int value) {
+            if (-1 <= value && value <= 5) {
+                op(0x03 + value); // iconst_<n>
+            } else if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+                op(0x10); // bipush
+                u1(value);
+            } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+                op(0x11); // sipush
+                u2(value);
+            } else {
+                op(0x13); // ldc_w
+                u2(mPool.integer(value));
+            }
+        }
+
+        void load(int local) {
+            op(0x15); // iload
+            u1(local);
+        }
+
+        void store(int local) {
+            op(0x36); // istore
+            u1(local);
+        }
+
+        void invoke(int method) {
+            op(0xB6); // invokevirtual
+            u2(method);
+        }
+
+        int label() {
+            if (mLabelCount == mLabels.length)
+                mLabels = Arrays.copyOf(mLabels, mLabels.length * 2);
+            mLabels[mLabelCount] = -1;
+            return mLabelCount++;
+        }
+
+        void bind(int label) {
+            mLabels[label] = mSize;
+        }
+
+        void jump(int opcode, int label) {
+            mJumps.add(new int[]{mSize, label});
+            op(opcode);
+            u2(0);
+        }
+
+        void resolve() {
+            for (final var jump : mJumps) {
+                final var offset = mLabels[jump[1]] - jump[0];
+                mBytes[jump[0] + 1] = (byte) (offset >> 8);
+                mBytes[jump[0] + 2] = (byte) offset;
+            }
+        }
+    }
+}
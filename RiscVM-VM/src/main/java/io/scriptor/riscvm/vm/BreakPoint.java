@@ -1,4 +0,0 @@
-package io.scriptor.riscvm.vm;
-
-public class BreakPoint extends RuntimeException {
-}
@@ -0,0 +1,100 @@
+package io.scriptor.riscvm.vm;
+
+/**
+ * The program counters a {@link Machine} stops in front of, shared by all harts. Breakpoints are kept in a bitmap with
+ * one bit per instruction and are only consulted while decoding, an instruction with a breakpoint decodes into
+ * {@link io.scriptor.riscvm.core.ISA#NULL}. Code without breakpoints runs at full speed.
+ * <p>
+ * Adding or removing a breakpoint drops the decoded and translated code of its page. Breakpoints may be changed while
+ * harts run, a running hart picks them up at its next block boundary. While suspended, breakpoints are kept but no hart
+ * stops at them.
+ */
+public class Breakpoints extends VMComponent {
+
+    private static final int WORDS = (Memory.PAGE_SIZE >> 2) / Long.SIZE;
+
+    /**
+     * one bit per instruction, allocated per page when it gets its first breakpoint
+     */
+    private final long[][] mPages;
+    private int mCount;
+    private volatile boolean mSuspended;
+
+    public Breakpoints(Machine machine, int size) {
+        super(machine);
+        mPages = new long[Memory.pages(size)][];
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>pc</code> is misaligned or outside the memory
+     */
+    public synchronized void add(int pc) {
+        check(pc);
+        final var index = pc >>> Memory.PAGE_SHIFT;
+        if (mPages[index] == null)
+            mPages[index] = new long[WORDS];
+        final var bit = 1L << (pc >>> 2);
+        final var word = (pc & Memory.PAGE_MASK) >>> 8;
+        if ((mPages[index][word] & bit) != 0)
+            return;
+        mPages[index][word] |= bit;
+        mCount++;
+        getMachine().discard(index);
+    }
+
+    public synchronized void remove(int pc) {
+        if (!contains(pc))
+            return;
+        final var index = pc >>> Memory.PAGE_SHIFT;
+        mPages[index][(pc & Memory.PAGE_MASK) >>> 8] &= ~(1L << (pc >>> 2));
+        mCount--;
+        getMachine().discard(index);
+    }
+
+    public synchronized void clear() {
+        for (int index = 0; index < mPages.length; index++)
+            if (mPages[index] != null) {
+                mPages[index] = null;
+                getMachine().discard(index);
+            }
+        mCount = 0;
+    }
+
+    /**
+     * Suspends or resumes all breakpoints, e.g. while re-executing history, see {@link TimeTravel}.
+     */
+    synchronized void setSuspended(boolean suspended) {
+        if (mSuspended == suspended)
+            return;
+        mSuspended = suspended;
+        for (int index = 0; index < mPages.length; index++)
+            if (mPages[index] != null)
+                getMachine().discard(index);
+    }
+
+    /**
+     * @return true if a hart has to stop in front of <code>pc</code>
+     */
+    boolean stops(int pc) {
+        return !mSuspended && contains(pc);
+    }
+
+    public boolean contains(int pc) {
+        if ((pc & 3) != 0)
+            return false;
+        final var index = pc >>> Memory.PAGE_SHIFT;
+        if (index >= mPages.length)
+            return false;
+        final var bits = mPages[index];
+        return bits != null && (bits[(pc & Memory.PAGE_MASK) >>> 8] & 1L << (pc >>> 2)) != 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    private void check(int pc) {
+        if ((pc & 3) != 0 || pc >>> Memory.PAGE_SHIFT >= mPages.length)
+            throw new IllegalArgumentException(String.format("cannot set a breakpoint at %08X", pc));
+    }
+}
@@ -0,0 +1,114 @@
+package io.scriptor.riscvm.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps {@link Device}s into the guest's address space, outside the range backed by {@link Memory}. The memory only
+ * consults the bus on its slow path, i.e. for accesses that miss the RAM, so ordinary loads and stores are not
+ * slowed down. Only plain loads and stores reach a device, atomic accesses to it fault.
+ * <p>
+ * Devices are looked up through a two-level table of pages, a mapping always covers whole pages.
+ */
+public class Bus extends VMComponent {
+
+    private record Region(int base, int size, Device device) {
+    }
+
+    private static final int LEAF_SHIFT = 10;
+    private static final int LEAF_SIZE = 1 << LEAF_SHIFT;
+    private static final int LEAF_MASK = LEAF_SIZE - 1;
+    private static final int ROOT_SHIFT = Memory.PAGE_SHIFT + LEAF_SHIFT;
+    private static final int ROOT_SIZE = 1 << (32 - ROOT_SHIFT);
+
+    private final Region[][] mRoot = new Region[ROOT_SIZE][];
+    private final List<Region> mRegions = new ArrayList<>();
+
+    public Bus(Machine machine) {
+        super(machine);
+    }
+
+    /**
+     * Maps <code>device</code> at <code>base</code>. Must not be called while a hart of the machine runs.
+     *
+     * @param base page aligned, at or above the memory size
+     * @param size in bytes, rounded up to whole pages
+     * @throws IllegalArgumentException if the range is not page aligned, overlaps the memory or another device
+     */
+    public synchronized void map(int base, int size, Device device) {
+        if ((base & Memory.PAGE_MASK) != 0 || size <= 0)
+            throw new IllegalArgumentException(String.format("invalid device range %08X+%X", base, size));
+
+        final var first = Integer.toUnsignedLong(base) >>> Memory.PAGE_SHIFT;
+        final var last = first + Memory.pages(size) - 1;
+        if (first < Memory.pages(getMachine().getMemory().getSize()) || last >= 1L << (32 - Memory.PAGE_SHIFT))
+            throw new IllegalArgumentException(String.format("device range %08X+%X is not outside the memory", base, size));
+        for (var page = first; page <= last; page++)
+            if (find((int) page << Memory.PAGE_SHIFT) != null)
+                throw new IllegalArgumentException(String.format("device range %08X+%X overlaps another device", base, size));
+
+        final var region = new Region(base, size, device);
+        for (var page = first; page <= last; page++) {
+            final var index = (int) (page >>> LEAF_SHIFT);
+            if (mRoot[index] == null)
+                mRoot[index] = new Region[LEAF_SIZE];
+            mRoot[index][(int) page & LEAF_MASK] = region;
+        }
+        mRegions.add(region);
+    }
+
+    /**
+     * @return true if a device is mapped at <code>address</code>
+     */
+    public boolean isMapped(int address) {
+        return find(address) != null;
+    }
+
+    private Region find(int address) {
+        final var leaf = mRoot[address >>> ROOT_SHIFT];
+        if (leaf == null)
+            return null;
+        final var region = leaf[(address >>> Memory.PAGE_SHIFT) & LEAF_MASK];
+        // the last page of a mapping may extend past the device
+        if (region == null || address - region.base() >= region.size())
+            return null;
+        return region;
+    }
+
+    /**
+     * Loads from the device at <code>address</code>.
+     *
+     * @param fault thrown if there is none
+     */
+    int load(int address, int width, RuntimeException fault) {
+        final var region = find(address);
+        if (region == null)
+            throw fault;
+        return region.device().load(address - region.base(), width);
+    }
+
+    /**
+     * Stores into the device at <code>address</code>.
+     *
+     * @param fault thrown if there is none
+     */
+    void store(int address, int width, int data, RuntimeException fault) {
+        final var region = find(address);
+        if (region == null)
+            throw fault;
+        region.device().store(address - region.base(), width, data);
+    }
+
+    public synchronized void reset() {
+        for (final var region : mRegions)
+            region.device().reset();
+    }
+
+    /**
+     * Maps the devices of <code>bus</code> at the same addresses, the device instances are shared.
+     */
+    synchronized void copyFrom(Bus bus) {
+        for (final var region : bus.mRegions)
+            map(region.base(), region.size(), region.device());
+    }
+}
@@ -4,14 +4,59 @@ import io.scriptor.riscvm.core.ISA;
 import io.scriptor.riscvm.core.Instruction;
 
 import java.util.Arrays;
+import java.util.function.Predicate;
 
 public class CPU extends VMComponent {
 
+    private final int mHart;
     private final int[] mRegisters;
 
+    /**
+     * why the cpu stopped, or null while it is running
+     */
+    private RunResult.Status mHalt;
+    private int mExitCode;
+    private long mRetired;
+    /**
+     * stopped in front of a breakpoint, the instruction there gets executed without stopping again when the hart
+     * continues
+     */
+    private boolean mTrapped;
+
+    /**
+     * the word loaded by the last lr.w, a following sc.w only succeeds if the memory still holds it
+     */
+    private boolean mReserved;
+    private int mReservedAddress;
+    private int mReservedValue;
+
+    /**
+     * counters of the executed code, null while profiling is disabled
+     */
+    private Profile mProfile;
+    /**
+     * recorder of the retired instructions, null while tracing is disabled
+     */
+    private Tracer mTracer;
+    private final Watchpoints mWatchpoints;
+
     public CPU(Machine machine) {
+        this(machine, 0);
+    }
+
+    public CPU(Machine machine, int hart) {
         super(machine);
+        mHart = hart;
         mRegisters = new int[32];
+        mWatchpoints = machine.getWatchpoints();
+        set(ISA.RegisterAlias.A0, hart);
+    }
+
+    /**
+     * @return the id of this hart, which is also passed to the guest in a0 on reset
+     */
+    public int getHart() {
+        return mHart;
     }
 
     public int[] getRegisters() {
@@ -29,95 +74,321 @@ public class CPU extends VMComponent {
         return builder.toString();
     }
 
+    /**
+     * Takes over the registers, halt reason and instruction count of <code>cpu</code>.
+     */
+    void copyFrom(CPU cpu) {
+        System.arraycopy(cpu.mRegisters, 0, mRegisters, 0, mRegisters.length);
+        mHalt = cpu.mHalt;
+        mExitCode = cpu.mExitCode;
+        mRetired = cpu.mRetired;
+        mReserved = false;
+        mTrapped = false;
+    }
+
+    /**
+     * Sets the state that is not part of the register file, used when restoring a {@link Snapshot}.
+     */
+    void restore(RunResult.Status halt, int exitCode, long retired) {
+        mHalt = halt;
+        mExitCode = exitCode;
+        mRetired = retired;
+        mReserved = false;
+        mTrapped = false;
+    }
+
     public void reset() {
         Arrays.fill(mRegisters, 0);
+        set(ISA.RegisterAlias.A0, mHart);
+        mHalt = null;
+        mRetired = 0;
+        mReserved = false;
+        mTrapped = false;
+    }
+
+    public boolean isHalted() {
+        return mHalt != null;
+    }
+
+    /**
+     * @return {@link RunResult.Status#EXITED} or {@link RunResult.Status#BREAKPOINT} if the guest stopped itself,
+     * otherwise null
+     */
+    public RunResult.Status getHalt() {
+        return mHalt;
+    }
+
+    /**
+     * @return true if this hart stopped in front of a breakpoint, see {@link Breakpoints}
+     */
+    public boolean isTrapped() {
+        return mTrapped;
+    }
+
+    public int getExitCode() {
+        return mExitCode;
+    }
+
+    /**
+     * Clears a previous exit or break, so execution can continue behind it.
+     */
+    public void resume() {
+        mHalt = null;
+    }
+
+    /**
+     * @return the number of instructions retired since the last reset
+     */
+    public long getRetired() {
+        return mRetired;
+    }
+
+    public Profile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Enables profiling into <code>profile</code>, or disables it if null. Must not be called while the hart runs.
+     */
+    public void setProfile(Profile profile) {
+        mProfile = profile;
+    }
+
+    public Tracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Enables tracing into <code>tracer</code>, or disables it if null. While tracing, this hart always runs
+     * interpreted. Must not be called while the hart runs.
+     */
+    public void setTracer(Tracer tracer) {
+        mTracer = tracer;
+    }
+
+    void retire(long count) {
+        mRetired += count;
     }
 
     public void cycle() {
-        final var instruction = getMachine().getMemory().getWord(nextPC());
-
-        final var oc = Instruction.getOpcode(instruction);
-        if (oc < 0 || oc >= ISA.values().length)
-            throw new IllegalStateException("loaded instruction has an invalid opcode");
-
-        final var instCode = ISA.values()[oc];
-        if (instCode.itype == null)
-            throw new IllegalStateException("loaded instruction has null type");
-
-        final var inst = switch (instCode.itype) {
-            case R -> Instruction.fromR(instruction);
-            case I -> Instruction.fromI(instruction);
-            case S -> Instruction.fromS(instruction);
-            case U -> Instruction.fromU(instruction);
-            case E -> Instruction.fromE(instruction);
-        };
+        run(1);
+    }
 
-        final var rd = inst.rd;
-        final var rs1 = inst.rs1;
-        final var rs2 = inst.rs2;
-        final var imm = inst.imm;
-
-        switch (instCode) {
-            case AND -> set(rd, get(rs1) & get(rs2));
-            case OR -> set(rd, get(rs1) | get(rs2));
-            case XOR -> set(rd, get(rs1) ^ get(rs2));
-            case ANDI -> set(rd, get(rs1) & imm);
-            case ORI -> set(rd, get(rs1) | imm);
-            case XORI -> set(rd, get(rs1) ^ imm);
-            case SLL -> set(rd, get(rs1) << get(rs2));
-            case SRL -> set(rd, get(rs1) >>> get(rs2));
-            case SRA -> set(rd, get(rs1) >> get(rs2));
-            case SLLI -> set(rd, get(rs1) << imm);
-            case SRLI -> set(rd, get(rs1) >>> imm);
-            case SRAI -> set(rd, get(rs1) >> imm);
-            case ADD -> set(rd, get(rs1) + get(rs2));
-            case SUB -> set(rd, get(rs1) - get(rs2));
-            case ADDI -> set(rd, get(rs1) + imm);
-            case SUBI -> set(rd, get(rs1) - imm);
-            case MUL -> set(rd, get(rs1) * get(rs2));
-            case DIV -> set(rd, get(rs1) / get(rs2));
-            case REM -> set(rd, get(rs1) % get(rs2));
-
-            case LW -> set(rd, getMachine().getMemory().getWord(get(rs1) + imm));
-            case LH -> set(rd, getMachine().getMemory().getHalf(get(rs1) + imm));
-            case LB -> set(rd, getMachine().getMemory().getByte(get(rs1) + imm));
-            case SW -> getMachine().getMemory().setWord(get(rs2) + imm, get(rs1));
-            case SH -> getMachine().getMemory().setHalf(get(rs2) + imm, (short) get(rs1));
-            case SB -> getMachine().getMemory().setByte(get(rs2) + imm, (byte) get(rs1));
-
-            case BEQ -> {
-                if (get(rs1) == get(rs2))
-                    set(ISA.RegisterAlias.PC, imm);
-            }
-            case BNE -> {
-                if (get(rs1) != get(rs2))
-                    set(ISA.RegisterAlias.PC, imm);
-            }
-            case BLT -> {
-                if (get(rs1) < get(rs2))
-                    set(ISA.RegisterAlias.PC, imm);
-            }
-            case BGE -> {
-                if (get(rs1) >= get(rs2))
-                    set(ISA.RegisterAlias.PC, imm);
-            }
-            case JAL -> {
-                set(rd, get(ISA.RegisterAlias.PC));
-                set(ISA.RegisterAlias.PC, imm);
+    /**
+     * Executes up to <code>budget</code> instructions, or until the guest exits or breaks. If the hart stopped in
+     * front of a breakpoint, it continues with the instruction there.
+     *
+     * @return the number of instructions retired
+     */
+    public long run(long budget) {
+        if (!mTrapped || budget <= 0)
+            return interpret(budget);
+
+        final var cache = getMachine().getCache(mHart);
+        mTrapped = false;
+        cache.ignore(get(ISA.RegisterAlias.PC));
+        final long n;
+        try {
+            n = interpret(1);
+        } finally {
+            cache.ignore(-1);
+        }
+        return mHalt != null ? n : n + interpret(budget - 1);
+    }
+
+    /**
+     * Like {@link #run(long)}, but also stops as soon as <code>until</code> holds, which is tested behind every
+     * instruction.
+     *
+     * @return the number of instructions retired
+     */
+    public long run(long budget, Predicate<CPU> until) {
+        long n = 0;
+        while (n < budget && mHalt == null) {
+            n += run(1);
+            if (until.test(this))
+                break;
+        }
+        return n;
+    }
+
+    private long interpret(long budget) {
+        final var cache = getMachine().getCache(mHart);
+        final var memory = getMachine().getMemory();
+        final var profile = mProfile;
+        final var tracer = mTracer;
+        final var watchpoints = mWatchpoints.isEmpty() ? null : mWatchpoints;
+
+        var pc = get(ISA.RegisterAlias.PC);
+        // start of the straight-line run being executed, only tracked for the profile
+        var start = pc;
+        var current = pc;
+        long n = 0;
+        try {
+            loop:
+            while (n < budget) {
+                current = pc;
+                pc += 4;
+
+                final var page = cache.fetch(current);
+                final var slot = InstructionCache.slot(current);
+
+                final var instCode = page.opcode[slot];
+                final var rd = page.rd[slot];
+                final var rs1 = page.rs1[slot];
+                final var rs2 = page.rs2[slot];
+                final var imm = page.imm[slot];
+
+                // the base register may be overwritten by the instruction itself
+                var address = 0;
+                if (tracer != null || watchpoints != null) address = address(instCode, get(rs1), get(rs2), imm);
+
+                switch (instCode) {
+                    case NULL -> {
+                        // a breakpoint, stop in front of the instruction without executing it
+                        pc = current;
+                        trap(current);
+                        break loop;
+                    }
+
+                    case AND -> set(rd, get(rs1) & get(rs2));
+                    case OR -> set(rd, get(rs1) | get(rs2));
+                    case XOR -> set(rd, get(rs1) ^ get(rs2));
+                    case ANDI -> set(rd, get(rs1) & imm);
+                    case ORI -> set(rd, get(rs1) | imm);
+                    case XORI -> set(rd, get(rs1) ^ imm);
+                    case SLL -> set(rd, get(rs1) << get(rs2));
+                    case SRL -> set(rd, get(rs1) >>> get(rs2));
+                    case SRA -> set(rd, get(rs1) >> get(rs2));
+                    case SLLI -> set(rd, get(rs1) << imm);
+                    case SRLI -> set(rd, get(rs1) >>> imm);
+                    case SRAI -> set(rd, get(rs1) >> imm);
+                    case ADD -> set(rd, get(rs1) + get(rs2));
+                    case SUB -> set(rd, get(rs1) - get(rs2));
+                    case ADDI -> set(rd, get(rs1) + imm);
+                    case SUBI -> set(rd, get(rs1) - imm);
+                    case MUL -> set(rd, get(rs1) * get(rs2));
+                    case DIV -> set(rd, get(rs1) / get(rs2));
+                    case REM -> set(rd, get(rs1) % get(rs2));
+
+                    case LW -> set(rd, memory.getWord(get(rs1) + imm));
+                    case LH -> set(rd, memory.getHalf(get(rs1) + imm));
+                    case LB -> set(rd, memory.getByte(get(rs1) + imm));
+                    case SW -> memory.setWord(get(rs2) + imm, get(rs1));
+                    case SH -> memory.setHalf(get(rs2) + imm, (short) get(rs1));
+                    case SB -> memory.setByte(get(rs2) + imm, (byte) get(rs1));
+
+                    case BEQ -> {
+                        if (get(rs1) == get(rs2))
+                            pc = imm;
+                        if (profile != null) start = branch(profile, start, current, pc);
+                    }
+                    case BNE -> {
+                        if (get(rs1) != get(rs2))
+                            pc = imm;
+                        if (profile != null) start = branch(profile, start, current, pc);
+                    }
+                    case BLT -> {
+                        if (get(rs1) < get(rs2))
+                            pc = imm;
+                        if (profile != null) start = branch(profile, start, current, pc);
+                    }
+                    case BGE -> {
+                        if (get(rs1) >= get(rs2))
+                            pc = imm;
+                        if (profile != null) start = branch(profile, start, current, pc);
+                    }
+                    case JAL -> {
+                        set(rd, pc);
+                        pc = imm;
+                        if (profile != null) start = jump(profile, start, current, pc);
+                    }
+                    case JALR -> {
+                        set(rd, pc);
+                        pc = get(rs1) + imm;
+                        if (profile != null) start = jump(profile, start, current, pc);
+                    }
+
+                    case SLT -> set(rd, get(rs1) < get(rs2) ? 1 : 0);
+                    case SLTI -> set(rd, get(rs1) < imm ? 1 : 0);
+
+                    case LR_W -> set(rd, loadReserved(get(rs1)));
+                    case SC_W -> set(rd, storeConditional(get(rs1), get(rs2)) ? 0 : 1);
+                    case AMOSWAP_W -> set(rd, memory.getAndSetWord(get(rs1), get(rs2)));
+                    case AMOADD_W -> set(rd, memory.getAndAddWord(get(rs1), get(rs2)));
+                    case AMOAND_W -> set(rd, memory.getAndAndWord(get(rs1), get(rs2)));
+                    case AMOOR_W -> set(rd, memory.getAndOrWord(get(rs1), get(rs2)));
+                    case AMOXOR_W -> set(rd, memory.getAndXorWord(get(rs1), get(rs2)));
+                    case AMOMAX_W -> set(rd, memory.getAndMaxWord(get(rs1), get(rs2)));
+                    case AMOMIN_W -> set(rd, memory.getAndMinWord(get(rs1), get(rs2)));
+
+                    case ECALL, EBREAK -> {
+                        set(ISA.RegisterAlias.PC, pc);
+                        if (instCode == ISA.ECALL) ecall();
+                        else ebreak();
+                        n++;
+                        // the result of an environment call is returned in a0
+                        if (tracer != null) tracer.record(current, instCode, ISA.RegisterAlias.A0.ordinal(), get(ISA.RegisterAlias.A0), 0);
+                        if (mHalt != null)
+                            break loop;
+                        continue;
+                    }
+
+                    default -> throw new IllegalStateException(String.format("unhandled instruction %s", Instruction.valueOf(memory.getWord(current))));
+                }
+                n++;
+                if (tracer != null) tracer.record(current, instCode, rd, get(rd), address);
+                if (watchpoints != null && watch(current, instCode, address))
+                    break;
             }
-            case JALR -> {
-                set(rd, get(ISA.RegisterAlias.PC));
-                set(ISA.RegisterAlias.PC, get(rs1) + imm);
+        } catch (RuntimeException e) {
+            // the faulting instruction does not retire
+            if (profile != null) {
+                profile.run(start, current);
+                start = pc;
             }
+            throw e;
+        } finally {
+            set(ISA.RegisterAlias.PC, pc);
+            mRetired += n;
+            if (profile != null) profile.run(start, pc);
+            if (tracer != null) tracer.publish();
+        }
+        return n;
+    }
 
-            case SLT -> set(rd, get(rs1) < get(rs2) ? 1 : 0);
-            case SLTI -> set(rd, get(rs1) < imm ? 1 : 0);
+    /**
+     * @return the address accessed by a load, store or atomic with the given operand values, 0 for other instructions
+     */
+    static int address(ISA isa, int rs1, int rs2, int imm) {
+        return switch (isa) {
+            case LW, LH, LB -> rs1 + imm;
+            case SW, SH, SB -> rs2 + imm;
+            case LR_W, SC_W, AMOSWAP_W, AMOADD_W, AMOAND_W, AMOOR_W, AMOXOR_W, AMOMAX_W, AMOMIN_W -> rs1;
+            default -> 0;
+        };
+    }
 
-            case ECALL -> ecall();
-            case EBREAK -> ebreak();
+    /**
+     * Records a conditional branch for the profile.
+     *
+     * @return the start of the next straight-line run
+     */
+    private static int branch(Profile profile, int start, int current, int target) {
+        profile.branch(current, target);
+        return jump(profile, start, current, target);
+    }
 
-            default -> throw new IllegalStateException(String.format("unhandled instruction %s", inst));
-        }
+    /**
+     * Ends the current straight-line run of the profile if the jump leaves it.
+     *
+     * @return the start of the next straight-line run
+     */
+    private static int jump(Profile profile, int start, int current, int target) {
+        if (target == current + 4)
+            return start;
+        profile.run(start, current + 4);
+        return target;
     }
 
     public void set(ISA.RegisterAlias a, int word) {
@@ -131,9 +402,7 @@ public class CPU extends VMComponent {
     }
 
     public int get(ISA.RegisterAlias a, int offset) {
-        a = ISA.RegisterAlias.values()[a.ordinal() + offset];
-        if (a == ISA.RegisterAlias.ZERO) return 0; // Zero hardwired to NULL
-        return this.mRegisters[a.ordinal() - 1];
+        return get(a.ordinal() + offset);
     }
 
     public int get(ISA.RegisterAlias a) {
@@ -146,47 +415,57 @@ public class CPU extends VMComponent {
         return this.mRegisters[i - 1];
     }
 
-    private int nextPC() {
-        final var pc = get(ISA.RegisterAlias.PC);
-        set(ISA.RegisterAlias.PC, pc + 4);
-        return pc;
+    int loadReserved(int address) {
+        final var value = getMachine().getMemory().getWordVolatile(address);
+        mReserved = true;
+        mReservedAddress = address;
+        mReservedValue = value;
+        return value;
     }
 
-    private void ecall() {
-        switch (get(ISA.RegisterAlias.A7)) {
+    boolean storeConditional(int address, int data) {
+        final var reserved = mReserved && mReservedAddress == address;
+        mReserved = false;
+        return reserved && getMachine().getMemory().compareAndSetWord(address, mReservedValue, data);
+    }
 
-            /*
-              write:
-               a0: fd
-               a1: buf
-               a2: count
-             */
-            case 64 -> {
-                final var fd = get(ISA.RegisterAlias.A0);
-                final var buf = get(ISA.RegisterAlias.A1);
-                final var count = get(ISA.RegisterAlias.A2);
+    void ecall() {
+        getMachine().getSyscalls().call(this);
+    }
 
-                final var ascii = getMachine().getMemory().getASCII(buf, count);
+    /**
+     * Stops this hart with <code>code</code>, as requested by an exit call.
+     */
+    void exit(int code) {
+        mExitCode = code;
+        mHalt = RunResult.Status.EXITED;
+        Events.exit(mHart, code);
+    }
 
-                switch (fd) {
-                    // std out
-                    case 1 -> System.out.print(ascii);
-                    // std err
-                    case 2 -> System.err.print(ascii);
-                }
-            }
+    /**
+     * Stops this hart in front of the breakpoint at <code>pc</code>.
+     */
+    void trap(int pc) {
+        mHalt = RunResult.Status.BREAKPOINT;
+        mTrapped = true;
+        Events.breakpoint(mHart, pc);
+    }
 
-            /*
-             * exit:
-             *  a0: code
-             */
-            case 93 -> {
-                throw new ExitSignal(get(ISA.RegisterAlias.A0));
-            }
-        }
+    /**
+     * Checks the access of the instruction at <code>pc</code> to <code>address</code>, right after it retired.
+     *
+     * @return true if the access hit a watchpoint, the hart is stopped behind the instruction then
+     */
+    boolean watch(int pc, ISA isa, int address) {
+        if (!mWatchpoints.check(this, pc, isa, address))
+            return false;
+        mHalt = RunResult.Status.WATCHPOINT;
+        Events.breakpoint(mHart, pc);
+        return true;
     }
 
-    private void ebreak() {
-        throw new BreakPoint();
+    void ebreak() {
+        mHalt = RunResult.Status.BREAKPOINT;
+        Events.breakpoint(mHart, get(ISA.RegisterAlias.PC));
     }
 }
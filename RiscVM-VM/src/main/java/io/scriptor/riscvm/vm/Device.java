@@ -0,0 +1,26 @@
+package io.scriptor.riscvm.vm;
+
+/**
+ * A peripheral mapped into the guest's address space through the {@link Bus}. Offsets are relative to the base of
+ * the mapping. Devices may be accessed by several harts at once.
+ */
+public interface Device {
+
+    /**
+     * @param width 1, 2 or 4 bytes
+     * @return the loaded value, only the lowest <code>width</code> bytes are used
+     */
+    int load(int offset, int width);
+
+    /**
+     * @param width 1, 2 or 4 bytes
+     * @param data  the stored value, only the lowest <code>width</code> bytes are meaningful
+     */
+    void store(int offset, int width, int data);
+
+    /**
+     * Returns the device to its initial state, called when the machine gets reset.
+     */
+    default void reset() {
+    }
+}
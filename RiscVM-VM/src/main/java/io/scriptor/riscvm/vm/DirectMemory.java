@@ -0,0 +1,186 @@
+package io.scriptor.riscvm.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Memory backed by a single contiguous direct buffer. Forking copies the whole buffer. Every load and store compares
+ * its address against the end of the buffer once, accesses beyond it go to the devices.
+ */
+public class DirectMemory extends Memory {
+
+    /**
+     * atomic word access to the buffer, the address has to be word aligned
+     */
+    private static final VarHandle WORD = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    /**
+     * source for clearing the buffer in bulk
+     */
+    private static final byte[] ZEROS = new byte[PAGE_SIZE];
+
+    private final ByteBuffer mData;
+
+    public DirectMemory(Machine machine, int size) {
+        this(machine, ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder()));
+    }
+
+    protected DirectMemory(Machine machine, ByteBuffer data) {
+        super(machine, data.capacity());
+        this.mData = data;
+    }
+
+    @Override
+    protected void clear() {
+        for (int address = 0; address < mData.capacity(); address += ZEROS.length)
+            mData.put(address, ZEROS, 0, Math.min(ZEROS.length, mData.capacity() - address));
+    }
+
+    @Override
+    protected Memory fork(Machine machine) {
+        final var data = ByteBuffer.allocateDirect(mData.capacity()).order(ByteOrder.nativeOrder());
+        data.put(0, mData, 0, mData.capacity());
+        return new DirectMemory(machine, data);
+    }
+
+    public ByteBuffer getBuffer() {
+        return mData;
+    }
+
+    @Override
+    public void setByte(int address, byte data) {
+        if (Integer.compareUnsigned(address, mData.capacity() - 1) > 0) {
+            storeDevice(address, 1, data, fault(address, 1));
+            return;
+        }
+        mData.put(address, data);
+        written(address, 1);
+    }
+
+    @Override
+    public byte getByte(int address) {
+        if (Integer.compareUnsigned(address, mData.capacity() - 1) > 0)
+            return (byte) loadDevice(address, 1, fault(address, 1));
+        return mData.get(address);
+    }
+
+    @Override
+    public void setHalf(int address, short data) {
+        if (Integer.compareUnsigned(address, mData.capacity() - 2) > 0) {
+            storeDevice(address, 2, data, fault(address, 2));
+            return;
+        }
+        mData.putShort(address, data);
+        written(address, 2);
+    }
+
+    @Override
+    public short getHalf(int address) {
+        if (Integer.compareUnsigned(address, mData.capacity() - 2) > 0)
+            return (short) loadDevice(address, 2, fault(address, 2));
+        return mData.getShort(address);
+    }
+
+    @Override
+    public void setWord(int address, int data) {
+        if (Integer.compareUnsigned(address, mData.capacity() - 4) > 0) {
+            storeDevice(address, 4, data, fault(address, 4));
+            return;
+        }
+        mData.putInt(address, data);
+        written(address, 4);
+    }
+
+    @Override
+    public int getWord(int address) {
+        if (Integer.compareUnsigned(address, mData.capacity() - 4) > 0)
+            return loadDevice(address, 4, fault(address, 4));
+        return mData.getInt(address);
+    }
+
+    /**
+     * @return the exception for an access beyond the buffer, or null if a device is mapped there and none is needed
+     */
+    private IndexOutOfBoundsException fault(int address, int width) {
+        if (getMachine().getBus().isMapped(address))
+            return null;
+        return new IndexOutOfBoundsException(String.format(
+                "access of %d bytes at %08X is outside the memory of %d bytes",
+                width,
+                address,
+                mData.capacity()));
+    }
+
+    @Override
+    public void write(int address, byte[] src, int offset, int length) {
+        mData.put(address, src, offset, length);
+        if (length > 0) written(address, length);
+    }
+
+    @Override
+    public void read(int address, byte[] dst, int offset, int length) {
+        mData.get(address, dst, offset, length);
+    }
+
+    @Override
+    public void write(int address, ByteBuffer src, int length) {
+        mData.put(address, src, src.position(), length);
+        src.position(src.position() + length);
+        if (length > 0) written(address, length);
+    }
+
+    @Override
+    public void read(int address, ByteBuffer dst, int length) {
+        dst.put(dst.position(), mData, address, length);
+        dst.position(dst.position() + length);
+    }
+
+    @Override
+    public int getWordVolatile(int address) {
+        return (int) WORD.getVolatile(mData, address);
+    }
+
+    @Override
+    public boolean compareAndSetWord(int address, int expected, int data) {
+        final var success = (boolean) WORD.compareAndSet(mData, address, expected, data);
+        if (success) written(address, 4);
+        return success;
+    }
+
+    @Override
+    public int getAndSetWord(int address, int data) {
+        final var value = (int) WORD.getAndSet(mData, address, data);
+        written(address, 4);
+        return value;
+    }
+
+    @Override
+    public int getAndAddWord(int address, int data) {
+        final var value = (int) WORD.getAndAdd(mData, address, data);
+        written(address, 4);
+        return value;
+    }
+
+    @Override
+    public int getAndAndWord(int address, int data) {
+        final var value = (int) WORD.getAndBitwiseAnd(mData, address, data);
+        written(address, 4);
+        return value;
+    }
+
+    @Override
+    public int getAndOrWord(int address, int data) {
+        final var value = (int) WORD.getAndBitwiseOr(mData, address, data);
+        written(address, 4);
+        return value;
+    }
+
+    @Override
+    public int getAndXorWord(int address, int data) {
+        final var value = (int) WORD.getAndBitwiseXor(mData, address, data);
+        written(address, 4);
+        return value;
+    }
+}
@@ -0,0 +1,130 @@
+package io.scriptor.riscvm.vm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events of guest execution, so the guest shows up in the same timeline as GC, I/O and the rest
+ * of the JVM. All of them are in the "RiscVM" category and can be enabled by name, e.g. <code>riscvm.Run</code>.
+ * <p>
+ * Creating the first event loads and registers the event classes, which takes a few hundred milliseconds. Events are
+ * therefore only created once Flight Recorder is initialized, see {@link #isEnabled()}. After that, an event that no
+ * recording has enabled is cheap to create and is never committed.
+ */
+final class Events {
+
+    private static final String CATEGORY = "RiscVM";
+
+    private Events() {
+    }
+
+    @Name("riscvm.Run")
+    @Label("Run")
+    @Description("A call to RiscVM.run on one hart")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Run extends Event {
+        @Label("Hart")
+        int hart;
+        @Label("Budget")
+        long budget;
+        @Label("Instructions")
+        long instructions;
+        @Label("MIPS")
+        @Description("Million instructions retired per second")
+        double mips;
+        @Label("Status")
+        String status;
+        @Label("Program Counter")
+        int pc;
+    }
+
+    @Name("riscvm.Syscall")
+    @Label("Syscall")
+    @Description("An environment call handled by the host")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Syscall extends Event {
+        @Label("Hart")
+        int hart;
+        @Label("Number")
+        int number;
+        @Label("Result")
+        int result;
+    }
+
+    @Name("riscvm.Breakpoint")
+    @Label("Breakpoint")
+    @Description("The guest reached a breakpoint")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Breakpoint extends Event {
+        @Label("Hart")
+        int hart;
+        @Label("Program Counter")
+        int pc;
+    }
+
+    @Name("riscvm.Exit")
+    @Label("Exit")
+    @Description("The guest exited")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Exit extends Event {
+        @Label("Hart")
+        int hart;
+        @Label("Exit Code")
+        int code;
+    }
+
+    @Name("riscvm.Invalidation")
+    @Label("Code Invalidation")
+    @Description("A store into a word holding cached or translated code")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Invalidation extends Event {
+        @Label("Address")
+        int address;
+    }
+
+    /**
+     * @return true if Flight Recorder was started, by a command line option or later, e.g. with <code>jcmd</code>
+     */
+    static boolean isEnabled() {
+        return FlightRecorder.isInitialized();
+    }
+
+    static void breakpoint(int hart, int pc) {
+        if (!isEnabled()) return;
+        final var event = new Breakpoint();
+        if (event.shouldCommit()) {
+            event.hart = hart;
+            event.pc = pc;
+            event.commit();
+        }
+    }
+
+    static void exit(int hart, int code) {
+        if (!isEnabled()) return;
+        final var event = new Exit();
+        if (event.shouldCommit()) {
+            event.hart = hart;
+            event.code = code;
+            event.commit();
+        }
+    }
+
+    static void invalidation(int address) {
+        if (!isEnabled()) return;
+        final var event = new Invalidation();
+        if (event.shouldCommit()) {
+            event.address = address;
+            event.commit();
+        }
+    }
+}
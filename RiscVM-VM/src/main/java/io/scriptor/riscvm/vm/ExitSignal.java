@@ -1,8 +1,15 @@
 package io.scriptor.riscvm.vm;
 
+/**
+ * Thrown by the {@link TestFinisher} to stop the guest from inside the store that requested it. Devices have no
+ * access to the hart, so they cannot halt it like an exit call does, see {@link RiscVM#run(long)}.
+ */
 public class ExitSignal extends RuntimeException {
 
+    public final int code;
+
     public ExitSignal(int code) {
-        super(String.format("Exit Code %d", code));
+        super(String.format("Exit Code %d", code), null, false, false);
+        this.code = code;
     }
 }
@@ -0,0 +1,193 @@
+package io.scriptor.riscvm.vm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Supplier;
+
+/**
+ * A guest file descriptor backed by host channels. Reads and writes go through a buffer of {@link #BUFFER_SIZE}
+ * bytes each, and are copied between the buffer and guest memory in bulk.
+ */
+public class HostFile implements Closeable {
+
+    public static final int BUFFER_SIZE = 8192;
+
+    /**
+     * @return a channel writing to the current value of <code>stream</code>, so redirections like
+     * {@link System#setOut(PrintStream)} are picked up
+     */
+    public static WritableByteChannel console(Supplier<PrintStream> stream) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                final var out = stream.get();
+                final var count = src.remaining();
+                out.write(src.array(), src.arrayOffset() + src.position(), count);
+                out.flush();
+                src.position(src.limit());
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private final ReadableByteChannel mIn;
+    private final WritableByteChannel mOut;
+    private final boolean mTerminal;
+    /**
+     * unread input between position and limit
+     */
+    private final ByteBuffer mInput;
+    /**
+     * pending output between 0 and position
+     */
+    private final ByteBuffer mOutput;
+
+    /**
+     * @param in       the channel to read from, or null if the file is write-only
+     * @param out      the channel to write to, or null if the file is read-only
+     * @param terminal true for the standard streams, which are never closed and report as character devices
+     */
+    public HostFile(ReadableByteChannel in, WritableByteChannel out, boolean terminal) {
+        mIn = in;
+        mOut = out;
+        mTerminal = terminal;
+        mInput = in == null ? null : ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+        mOutput = out == null ? null : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    public boolean isReadable() {
+        return mIn != null;
+    }
+
+    public boolean isWritable() {
+        return mOut != null;
+    }
+
+    public boolean isTerminal() {
+        return mTerminal;
+    }
+
+    /**
+     * Reads up to <code>count</code> bytes into guest memory. Blocks only until some bytes are available, like a
+     * POSIX read.
+     *
+     * @return the number of bytes read, 0 at the end of the file
+     */
+    public int read(Memory memory, int address, int count) throws IOException {
+        // a file opened for reading and writing shares one channel position
+        flush();
+
+        int done = 0;
+        while (done < count) {
+            if (!mInput.hasRemaining()) {
+                if (done > 0)
+                    break;
+                mInput.clear();
+                final var n = mIn.read(mInput);
+                mInput.flip();
+                if (n <= 0)
+                    break;
+            }
+            final var n = Math.min(mInput.remaining(), count - done);
+            memory.write(address + done, mInput, n);
+            done += n;
+        }
+        return done;
+    }
+
+    /**
+     * Writes <code>count</code> bytes from guest memory, the buffer gets flushed whenever it is full.
+     */
+    public int write(Memory memory, int address, int count) throws IOException {
+        // give back input that was buffered but not read yet, so the write lands at the guest's position
+        final var channel = seekable();
+        if (channel != null && mInput != null && mInput.hasRemaining()) {
+            channel.position(channel.position() - mInput.remaining());
+            mInput.limit(0);
+        }
+
+        int done = 0;
+        while (done < count) {
+            if (!mOutput.hasRemaining())
+                flush();
+            final var n = Math.min(mOutput.remaining(), count - done);
+            memory.read(address + done, mOutput, n);
+            done += n;
+        }
+        return done;
+    }
+
+    public void flush() throws IOException {
+        if (mOutput == null || mOutput.position() == 0)
+            return;
+        mOutput.flip();
+        while (mOutput.hasRemaining())
+            mOut.write(mOutput);
+        mOutput.clear();
+    }
+
+    /**
+     * @return the new position, or -1 if the file is not seekable
+     */
+    public long seek(long offset, int whence) throws IOException {
+        final var channel = seekable();
+        if (channel == null)
+            return -1;
+
+        flush();
+        final var position = switch (whence) {
+            case 0 -> offset;
+            // input that was buffered but not read yet does not count
+            case 1 -> channel.position() - (mInput == null ? 0 : mInput.remaining()) + offset;
+            case 2 -> channel.size() + offset;
+            default -> -1L;
+        };
+        if (position < 0)
+            return -1;
+
+        channel.position(position);
+        if (mInput != null)
+            mInput.limit(0);
+        return position;
+    }
+
+    /**
+     * @return the size of the file, 0 if it is not seekable
+     */
+    public long size() throws IOException {
+        final var channel = seekable();
+        if (channel == null)
+            return 0;
+        flush();
+        return channel.size();
+    }
+
+    private SeekableByteChannel seekable() {
+        if (mIn instanceof SeekableByteChannel channel) return channel;
+        if (mOut instanceof SeekableByteChannel channel) return channel;
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (mTerminal)
+            return;
+        if (mIn != null) mIn.close();
+        if (mOut != null && mOut != mIn) mOut.close();
+    }
+}
@@ -0,0 +1,125 @@
+package io.scriptor.riscvm.vm;
+
+import io.scriptor.riscvm.core.ISA;
+import io.scriptor.riscvm.core.Instruction;
+
+import java.util.Arrays;
+
+/**
+ * Decoded instructions, keyed by program counter. Each memory page that gets executed owns a set of primitive
+ * arrays holding the decoded fields of its words. Slots are decoded on first fetch and stay valid until the
+ * {@link Memory} reports a store into their word.
+ * <p>
+ * Every hart owns its own cache, so decoded pages are never shared between threads.
+ */
+public class InstructionCache extends VMComponent {
+
+    private static final int SLOTS = Memory.PAGE_SIZE >> 2;
+
+    static final class Page {
+        final ISA[] opcode = new ISA[SLOTS];
+        final int[] rd = new int[SLOTS];
+        final int[] rs1 = new int[SLOTS];
+        final int[] rs2 = new int[SLOTS];
+        final int[] imm = new int[SLOTS];
+    }
+
+    private final Page[] mPages;
+    /**
+     * decodes misaligned program counters, and code beyond the configured memory size, it never gets cached and
+     * only its slot of the last fetch is valid
+     */
+    private final Page mScratch = new Page();
+    /**
+     * program counter whose breakpoint is ignored, so the hart can continue behind it
+     */
+    private int mIgnored = -1;
+
+    public InstructionCache(Machine machine, int size) {
+        super(machine);
+        mPages = new Page[Memory.pages(size)];
+    }
+
+    static int slot(int pc) {
+        return (pc & Memory.PAGE_MASK) >>> 2;
+    }
+
+    /**
+     * @return the page holding the decoded instruction at <code>pc</code>, see {@link #slot(int)}
+     */
+    Page fetch(int pc) {
+        final var index = pc >>> Memory.PAGE_SHIFT;
+        if ((pc & 3) == 0 && index < mPages.length) {
+            final var page = mPages[index];
+            if (page != null && page.opcode[slot(pc)] != null)
+                return page;
+        }
+        return decode(pc);
+    }
+
+    public void invalidate(int page) {
+        mPages[page] = null;
+    }
+
+    public void invalidate() {
+        Arrays.fill(mPages, null);
+    }
+
+    /**
+     * Decodes the instruction at <code>pc</code> as if it had no breakpoint, until ignoring another program counter.
+     * Pass -1 to ignore none.
+     */
+    void ignore(int pc) {
+        drop(mIgnored);
+        mIgnored = pc;
+        drop(pc);
+    }
+
+    /**
+     * Drops the decoded instruction at <code>pc</code>, so it gets decoded again on its next fetch.
+     */
+    void drop(int pc) {
+        final var index = pc >>> Memory.PAGE_SHIFT;
+        if (index >= mPages.length)
+            return;
+        final var page = mPages[index];
+        if (page != null)
+            page.opcode[slot(pc)] = null;
+    }
+
+    private Page decode(int pc) {
+        final var memory = getMachine().getMemory();
+        final var index = pc >>> Memory.PAGE_SHIFT;
+        final var cached = (pc & 3) == 0 && index < mPages.length;
+        // mark the word before reading it, so a concurrent store either is read or drops the slot again
+        if (cached)
+            memory.markCode(pc);
+        final var instruction = memory.getWord(pc);
+
+        final var instCode = ISA.fromOpcode(Instruction.getOpcode(instruction));
+        if (instCode == null)
+            throw new IllegalStateException("loaded instruction has an invalid opcode");
+
+        final var itype = instCode.itype;
+        if (itype == null)
+            throw new IllegalStateException("loaded instruction has null type");
+
+        final Page page;
+        if (!cached) {
+            page = mScratch;
+        } else {
+            // read the page once, another hart may discard it concurrently
+            final var existing = mPages[index];
+            page = existing != null ? existing : (mPages[index] = new Page());
+        }
+
+        final var slot = slot(pc);
+        page.rd[slot] = Instruction.getRd(itype, instruction);
+        page.rs1[slot] = Instruction.getRs1(itype, instruction);
+        page.rs2[slot] = Instruction.getRs2(itype, instruction);
+        page.imm[slot] = Instruction.getImm(itype, instruction);
+        // an instruction with a breakpoint gets replaced, so the breakpoint costs nothing until it is reached
+        page.opcode[slot] = pc != mIgnored && getMachine().getBreakpoints().stops(pc) ? ISA.NULL : instCode;
+        return page;
+    }
+}
@@ -1,43 +1,256 @@
 package io.scriptor.riscvm.vm;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * One or more harts sharing a single {@link Memory}. Every hart has its own {@link CPU}, {@link InstructionCache}
+ * and, unless interpreted, {@link ThreadedEngine}, so harts can run on separate threads.
+ */
 public class Machine {
 
+    private final VMConfig.Engine mEngine;
     private final Memory mMemory;
-    private final CPU mCPU;
+    private final InstructionCache[] mCaches;
+    private final CPU[] mCPUs;
+    private final ThreadedEngine[] mEngines;
+    private final Syscalls mSyscalls;
+    private final Bus mBus;
+    private final Breakpoints mBreakpoints;
+    private final Watchpoints mWatchpoints;
+    /**
+     * id of the last {@link Snapshot} saved or restored, 0 if there is none
+     */
+    private long mSnapshot;
 
     public Machine(VMConfig config) {
-        this(config.memory());
+        this(config.memory(), config.engine(), config.harts(), config.memoryType(), config.image());
     }
 
     public Machine(int memory) {
-        this.mMemory = new Memory(this, memory);
-        this.mCPU = new CPU(this);
+        this(memory, VMConfig.Engine.INTERPRETER);
+    }
+
+    public Machine(int memory, VMConfig.Engine engine) {
+        this(memory, engine, 1);
+    }
+
+    public Machine(int memory, VMConfig.Engine engine, int harts) {
+        this(memory, engine, harts, VMConfig.MemoryType.DIRECT);
+    }
+
+    public Machine(int memory, VMConfig.Engine engine, int harts, VMConfig.MemoryType memoryType) {
+        this(memory, engine, harts, memoryType, null);
+    }
+
+    /**
+     * @param image the file to map, required for the mapped memory types
+     * @throws UncheckedIOException if the image could not be mapped
+     */
+    public Machine(int memory, VMConfig.Engine engine, int harts, VMConfig.MemoryType memoryType, Path image) {
+        this(machine -> switch (memoryType) {
+            case DIRECT -> new DirectMemory(machine, memory);
+            case PAGED -> new PagedMemory(machine, memory);
+            case MAPPED -> map(machine, image, memory, true);
+            case MAPPED_PRIVATE -> map(machine, image, memory, false);
+        }, engine, harts);
+    }
+
+    private Machine(Function<Machine, Memory> memoryFactory, VMConfig.Engine engine, int harts) {
+        if (harts < 1)
+            throw new IllegalArgumentException(String.format("a machine needs at least one hart, got %d", harts));
+
+        this.mEngine = engine;
+        this.mMemory = memoryFactory.apply(this);
+        final var memory = mMemory.getSize();
+        this.mCaches = new InstructionCache[harts];
+        this.mCPUs = new CPU[harts];
+        this.mEngines = new ThreadedEngine[harts];
+        this.mSyscalls = new Syscalls(this);
+        this.mBus = new Bus(this);
+        this.mBreakpoints = new Breakpoints(this, memory);
+        this.mWatchpoints = new Watchpoints(this, harts);
+        for (int hart = 0; hart < harts; hart++) {
+            mCaches[hart] = new InstructionCache(this, memory);
+            mCPUs[hart] = new CPU(this, hart);
+            mEngines[hart] = switch (engine) {
+                case INTERPRETER -> null;
+                case THREADED -> new ThreadedEngine(mCPUs[hart], memory, false);
+                case JIT -> new ThreadedEngine(mCPUs[hart], memory, true);
+            };
+        }
+    }
+
+    private static Memory map(Machine machine, Path image, int size, boolean shared) {
+        if (image == null)
+            throw new IllegalArgumentException("mapped memory needs an image file");
+        try {
+            return new MappedMemory(machine, image, size, shared);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
     public String toString() {
-        return new StringBuilder()
+        final var builder = new StringBuilder()
                 .append("----------- Memory ----------\n")
-                .append(mMemory).append('\n')
-                .append("------------ CPU ------------\n")
-                .append(mCPU)
-                .toString();
+                .append(mMemory).append('\n');
+        for (final var cpu : mCPUs)
+            builder.append(String.format("----------- CPU %2d ----------%n", cpu.getHart()))
+                    .append(cpu).append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * Creates a child machine with a copy of this machine's memory and the current state of every hart. The child
+     * starts without any cached or compiled code. With {@link PagedMemory} the copy is made lazily, page by page, as
+     * either machine stores into the memory. The child shares no open files with this machine, only the standard
+     * streams, but the same devices are mapped into it.
+     * <p>
+     * Must not be called while any hart of this machine runs.
+     */
+    public Machine fork() {
+        final var child = new Machine(mMemory::fork, mEngine, mCPUs.length);
+        for (int hart = 0; hart < mCPUs.length; hart++)
+            child.mCPUs[hart].copyFrom(mCPUs[hart]);
+        child.mSyscalls.copyFrom(mSyscalls);
+        child.mBus.copyFrom(mBus);
+        return child;
     }
 
     public Memory getMemory() {
         return this.mMemory;
     }
 
+    public Syscalls getSyscalls() {
+        return this.mSyscalls;
+    }
+
+    public Bus getBus() {
+        return this.mBus;
+    }
+
+    public Breakpoints getBreakpoints() {
+        return this.mBreakpoints;
+    }
+
+    public Watchpoints getWatchpoints() {
+        return this.mWatchpoints;
+    }
+
+    public int getHarts() {
+        return mCPUs.length;
+    }
+
+    public InstructionCache getCache() {
+        return getCache(0);
+    }
+
+    public InstructionCache getCache(int hart) {
+        return this.mCaches[hart];
+    }
+
     public CPU getCPU() {
-        return this.mCPU;
+        return getCPU(0);
+    }
+
+    public CPU getCPU(int hart) {
+        return this.mCPUs[hart];
+    }
+
+    long getSnapshot() {
+        return mSnapshot;
+    }
+
+    void setSnapshot(long snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * Called by the {@link Memory} when a word holding decoded code gets written to.
+     */
+    void invalidate(int address) {
+        Events.invalidation(address);
+        for (final var cache : mCaches)
+            cache.drop(address);
+        for (final var engine : mEngines)
+            if (engine != null) engine.drop(address);
     }
 
+    /**
+     * Drops the decoded and translated code of a page on every hart, so it gets decoded again on its next execution.
+     */
+    void discard(int page) {
+        for (final var cache : mCaches)
+            cache.invalidate(page);
+        for (final var engine : mEngines)
+            if (engine != null) engine.invalidate(page);
+    }
+
+    /**
+     * Drops the translated code of every hart, so it gets translated again, e.g. with or without watchpoint checks.
+     */
+    void retranslate() {
+        for (final var engine : mEngines)
+            if (engine != null) engine.invalidate();
+    }
+
+    /**
+     * Executes a single instruction on the first hart.
+     */
     public void cycle() {
-        mCPU.cycle();
+        mCPUs[0].cycle();
+    }
+
+    /**
+     * Executes up to <code>budget</code> instructions on the first hart with the configured engine.
+     *
+     * @return the number of instructions retired
+     */
+    public long run(long budget) {
+        return run(0, budget);
+    }
+
+    /**
+     * Executes up to <code>budget</code> instructions on the given hart with the configured engine. Different harts
+     * may be run concurrently from different threads.
+     *
+     * @return the number of instructions retired
+     */
+    public long run(int hart, long budget) {
+        final var engine = mEngines[hart];
+        if (engine != null && !isInterpreted(hart)) return engine.run(budget);
+        return mCPUs[hart].run(budget);
+    }
+
+    /**
+     * Like {@link #run(int, long)}, but also stops as soon as <code>until</code> holds. The threaded engines test it
+     * behind every block, the interpreter behind every instruction.
+     *
+     * @return the number of instructions retired
+     */
+    public long run(int hart, long budget, Predicate<CPU> until) {
+        final var engine = mEngines[hart];
+        if (engine != null && !isInterpreted(hart)) return engine.run(budget, until);
+        return mCPUs[hart].run(budget, until);
+    }
+
+    /**
+     * @return true if the hart has to run interpreted, because the engines do not record traces
+     */
+    private boolean isInterpreted(int hart) {
+        return mCPUs[hart].getTracer() != null;
     }
 
     public void reset() {
         mMemory.reset();
-        mCPU.reset();
+        mSyscalls.reset();
+        mBus.reset();
+        for (final var cpu : mCPUs)
+            cpu.reset();
     }
 }
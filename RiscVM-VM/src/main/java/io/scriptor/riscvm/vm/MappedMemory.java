@@ -0,0 +1,75 @@
+package io.scriptor.riscvm.vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory backed by a file holding a guest image.
+ * <p>
+ * A shared mapping uses the file in place: pages are read from disk on first access and shared with other processes
+ * through the page cache, the guest's stores are written back to the file and {@link #sync()} forces them to disk. The
+ * file is created if missing, and a file shorter than the memory size gets extended with zeros. Note that
+ * {@link #reset()} zeros the memory, and with it the file.
+ * <p>
+ * A private mapping never modifies the file, it has to exist and is only opened for reading. The JDK maps files
+ * privately only through a writable channel, so the image is copied into the memory once instead, missing bytes read
+ * as zero. Forks get a plain {@link DirectMemory} copy.
+ */
+public class MappedMemory extends DirectMemory {
+
+    private final Path mPath;
+    private final boolean mShared;
+
+    public MappedMemory(Machine machine, Path path, int size, boolean shared) throws IOException {
+        super(machine, map(path, size, shared));
+        this.mPath = path;
+        this.mShared = shared;
+    }
+
+    private static ByteBuffer map(Path path, int size, boolean shared) throws IOException {
+        if (!shared)
+            return read(path, size);
+
+        // the mapping stays valid after its channel was closed
+        try (final var channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        }
+    }
+
+    private static ByteBuffer read(Path path, int size) throws IOException {
+        try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final var buffer = ByteBuffer.allocateDirect(size);
+            buffer.put(channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, channel.size())));
+            buffer.clear();
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        }
+    }
+
+    public Path getPath() {
+        return mPath;
+    }
+
+    public boolean isShared() {
+        return mShared;
+    }
+
+    /**
+     * Writes all stores to a shared mapping back to its file, does nothing for a private mapping.
+     */
+    public void sync() {
+        if (mShared)
+            ((MappedByteBuffer) getBuffer()).force();
+    }
+}
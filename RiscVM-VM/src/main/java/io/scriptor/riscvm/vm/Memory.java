@@ -1,43 +1,94 @@
 package io.scriptor.riscvm.vm;
 
-import io.scriptor.riscvm.core.Instruction;
+import io.scriptor.riscvm.core.Decoded;
 import io.scriptor.riscvm.core.Util;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.function.IntConsumer;
 
-public class Memory extends VMComponent {
+/**
+ * The guest's physical memory. Accesses outside of the addressable range throw an {@link IndexOutOfBoundsException},
+ * atomic accesses also require word alignment.
+ * <p>
+ * Implementations have to call {@link #written(int, int)} after every store, so cached code gets invalidated. Plain
+ * loads and stores that miss the memory go to {@link #loadDevice(int, int, IndexOutOfBoundsException)} and
+ * {@link #storeDevice(int, int, int, IndexOutOfBoundsException)}, so devices on the {@link Bus} are reached.
+ */
+public abstract class Memory extends VMComponent {
 
     private static final int N = 16;
 
-    private final ByteBuffer mData;
+    /**
+     * the page holds decoded code, stores into it have to check which of its words were decoded
+     */
+    private static final byte CODE = 1;
+    /**
+     * the page was written since the last {@link #clearDirty()}
+     */
+    private static final byte DIRTY = 2;
+    /**
+     * the page holds a watchpoint, guest accesses to it have to be checked, see {@link Watchpoints}
+     */
+    private static final byte WATCHED = 4;
 
-    public Memory(Machine machine, int size) {
+    private static final VarHandle FLAGS = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final VarHandle DECODED = MethodHandles.arrayElementVarHandle(long[].class);
+
+    public static final int PAGE_SHIFT = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    public static int pages(int size) {
+        return (size + PAGE_MASK) >>> PAGE_SHIFT;
+    }
+
+    private final int mSize;
+    /**
+     * {@link #CODE}, {@link #DIRTY} and {@link #WATCHED} bits of each page below the configured size, updated atomically because
+     * several harts may store into the same page
+     */
+    private final byte[] mFlags;
+    /**
+     * one bit per word below the configured size, set while the word is decoded by an {@link InstructionCache}, so
+     * only stores that overwrite code drop it
+     */
+    private final long[] mDecoded;
+    /**
+     * set by {@link #reset()}, the dirty bits do not describe the changes since the last {@link #clearDirty()} then
+     */
+    private boolean mCleared;
+
+    protected Memory(Machine machine, int size) {
         super(machine);
-        this.mData = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        this.mSize = size;
+        this.mFlags = new byte[pages(size)];
+        this.mDecoded = new long[pages(size) << PAGE_SHIFT - 8];
     }
 
     @Override
     public String toString() {
         final var builder = new StringBuilder()
-                .append("Size: ").append(Util.unit(mData.capacity()));
+                .append("Size: ").append(Util.unit(mSize));
+        final var decoded = new Decoded();
 
-        for (int i = 0; i < mData.capacity(); i += N) {
+        for (int i = 0; i < mSize; i += N) {
             builder.append(String.format("%n%08X: ", i));
             for (int j = 0; j < N; j++)
-                builder.append(String.format("%02X ", mData.get(i + j)));
+                builder.append(String.format("%02X ", getByte(i + j)));
 
             builder.append('|');
             for (int j = 0; j < N; j++) {
-                final var c = mData.get(i + j);
+                final var c = getByte(i + j);
                 builder.append(String.format("%c", 0x20 <= c && c <= 0x7E ? c : '.'));
             }
             builder.append('|');
 
             builder.append("| ");
             for (int j = 0; j < N; j += 4) {
-                final var c = mData.getInt(i + j);
-                builder.append(String.format("%16s ", Instruction.valueOf(c)));
+                final var c = getWord(i + j);
+                builder.append(String.format("%16s ", decoded.decode(c) ? decoded : null));
             }
             builder.append('|');
 
@@ -55,55 +106,249 @@ public class Memory extends VMComponent {
     }
 
     private boolean checkSegments(int segment0, int segment1) {
-        if (segment0 < 0 || segment1 < 0 || segment0 + N - 1 >= mData.capacity() || segment1 + N - 1 >= mData.capacity())
+        if (segment0 < 0 || segment1 < 0 || segment0 + N - 1 >= mSize || segment1 + N - 1 >= mSize)
             return false;
         for (int i = 0; i < N; i++)
-            if (mData.get(segment0 + i) != mData.get(segment1 + i))
+            if (getByte(segment0 + i) != getByte(segment1 + i))
                 return false;
         return true;
     }
 
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of addressable bytes, at least {@link #getSize()}
+     */
+    public long getLimit() {
+        return mSize;
+    }
+
+    /**
+     * Fills the memory with zeros.
+     */
     public void reset() {
-        mData.position(0);
-        while (mData.hasRemaining())
-            mData.put((byte) 0);
-        mData.clear();
+        clear();
+        invalidate();
+        mCleared = true;
+    }
+
+    protected abstract void clear();
+
+    /**
+     * @return a copy of this memory owned by <code>machine</code>, later stores into either of them are not visible to
+     * the other one
+     */
+    protected abstract Memory fork(Machine machine);
+
+    /**
+     * Marks the aligned word at <code>pc</code> as decoded, must be called before the word is read.
+     */
+    void markCode(int pc) {
+        final var page = pc >>> PAGE_SHIFT;
+        if (page >= mFlags.length)
+            return;
+        final var word = pc >>> 2;
+        final var bit = 1L << word;
+        if ((mDecoded[word >>> 6] & bit) == 0)
+            DECODED.getAndBitwiseOr(mDecoded, word >>> 6, bit);
+        if ((mFlags[page] & CODE) == 0)
+            FLAGS.getAndBitwiseOr(mFlags, page, CODE);
+    }
+
+    void watch(int page, boolean watched) {
+        if (watched) FLAGS.getAndBitwiseOr(mFlags, page, WATCHED);
+        else FLAGS.getAndBitwiseAnd(mFlags, page, (byte) ~WATCHED);
+    }
+
+    /**
+     * @return true if any of the <code>width</code> bytes at <code>address</code> lies in a watched page
+     */
+    boolean isWatched(int address, int width) {
+        final var first = address >>> PAGE_SHIFT;
+        final var last = (address + width - 1) >>> PAGE_SHIFT;
+        return first < mFlags.length && (mFlags[first] & WATCHED) != 0
+                || last < mFlags.length && (mFlags[last] & WATCHED) != 0;
+    }
+
+    /**
+     * Drops all cached code, must be called after writing to the memory behind its back.
+     */
+    public void invalidate() {
+        final var words = PAGE_SIZE >>> 8;
+        for (int page = 0; page < mFlags.length; page++) {
+            if (((byte) FLAGS.getAndBitwiseAnd(mFlags, page, (byte) ~CODE) & CODE) == 0)
+                continue;
+            for (int i = page * words; i < (page + 1) * words; i++)
+                DECODED.setVolatile(mDecoded, i, 0L);
+            getMachine().discard(page);
+        }
+    }
+
+    /**
+     * Drops the decoded words among the <code>size</code> bytes at <code>address</code>, a word at a time.
+     */
+    private void invalidate(int address, int size) {
+        final var first = address >>> 2;
+        final var last = Math.min((address + size - 1) >>> 2, (mDecoded.length << 6) - 1);
+        for (int word = first; word <= last; ) {
+            final var index = word >>> 6;
+            final var end = Math.min(last, index << 6 | 63);
+            final var mask = -1L << word & -1L >>> 63 - (end & 63);
+            if ((mDecoded[index] & mask) != 0) {
+                final var dropped = (long) DECODED.getAndBitwiseAnd(mDecoded, index, ~mask) & mask;
+                for (var bits = dropped; bits != 0; bits &= bits - 1)
+                    getMachine().invalidate((index << 6 | Long.numberOfTrailingZeros(bits)) << 2);
+            }
+            word = end + 1;
+        }
     }
 
-    public ByteBuffer getBuffer() {
-        return mData;
+    protected void written(int address, int size) {
+        // the common case, kept small enough to be inlined: a store into a page that was written before and holds no
+        // code
+        final var page = address >>> PAGE_SHIFT;
+        if (page < mFlags.length && mFlags[page] == DIRTY && (address + size - 1) >>> PAGE_SHIFT == page)
+            return;
+        touched(address, size);
     }
 
-    public void setByte(int address, byte data) {
-        mData.put(address, data);
+    private void touched(int address, int size) {
+        final var first = address >>> PAGE_SHIFT;
+        final var last = (address + size - 1) >>> PAGE_SHIFT;
+        // code and dirty pages are only tracked below the configured size
+        var code = false;
+        for (int page = first; page <= last && page < mFlags.length; page++) {
+            var flags = mFlags[page];
+            if ((flags & DIRTY) == 0)
+                flags = (byte) FLAGS.getAndBitwiseOr(mFlags, page, DIRTY);
+            code |= (flags & CODE) != 0;
+        }
+        // most stores into a page holding code, like pushes onto a stack behind the code, overwrite no decoded word
+        if (code)
+            invalidate(address, size);
+    }
+
+    /**
+     * Calls <code>consumer</code> with the index of every page that may hold data, or with <code>dirty</code> set
+     * only of those written since the last {@link #clearDirty()}. Pages beyond the configured size are not tracked,
+     * they are always reported.
+     */
+    public void forEachPage(boolean dirty, IntConsumer consumer) {
+        for (int page = 0; page < mFlags.length; page++)
+            if (!dirty || (mFlags[page] & DIRTY) != 0)
+                consumer.accept(page);
+        forEachPageBeyond(mFlags.length, consumer);
+    }
+
+    /**
+     * Calls <code>consumer</code> with every page starting at <code>first</code> that may hold data.
+     */
+    protected void forEachPageBeyond(int first, IntConsumer consumer) {
+    }
+
+    public void clearDirty() {
+        for (int page = 0; page < mFlags.length; page++)
+            FLAGS.getAndBitwiseAnd(mFlags, page, (byte) ~DIRTY);
+        mCleared = false;
     }
 
-    public byte getByte(int address) {
-        return mData.get(address);
+    /**
+     * @return true if the memory was reset since the last {@link #clearDirty()}, so the dirty pages alone do not
+     * describe all changes
+     */
+    public boolean isCleared() {
+        return mCleared;
     }
 
-    public void setHalf(int address, short data) {
-        mData.putShort(address, data);
+    /**
+     * Slow path of a load that missed the memory, loads from the device mapped at <code>address</code>.
+     *
+     * @param fault rethrown if there is no device
+     */
+    protected int loadDevice(int address, int width, IndexOutOfBoundsException fault) {
+        return getMachine().getBus().load(address, width, fault);
     }
 
-    public short getHalf(int address) {
-        return mData.getShort(address);
+    /**
+     * Slow path of a store that missed the memory, stores into the device mapped at <code>address</code>.
+     *
+     * @param fault rethrown if there is no device
+     */
+    protected void storeDevice(int address, int width, int data, IndexOutOfBoundsException fault) {
+        getMachine().getBus().store(address, width, data, fault);
     }
 
-    public void setWord(int address, int data) {
-        mData.putInt(address, data);
+    public abstract void setByte(int address, byte data);
+
+    public abstract byte getByte(int address);
+
+    public abstract void setHalf(int address, short data);
+
+    public abstract short getHalf(int address);
+
+    public abstract void setWord(int address, int data);
+
+    public abstract int getWord(int address);
+
+    /**
+     * Copies <code>length</code> bytes from <code>src</code> into the memory, starting at <code>address</code>.
+     */
+    public abstract void write(int address, byte[] src, int offset, int length);
+
+    /**
+     * Copies <code>length</code> bytes starting at <code>address</code> into <code>dst</code>.
+     */
+    public abstract void read(int address, byte[] dst, int offset, int length);
+
+    /**
+     * Copies <code>length</code> bytes from the position of <code>src</code> into the memory, starting at
+     * <code>address</code>, and advances the position.
+     */
+    public abstract void write(int address, ByteBuffer src, int length);
+
+    /**
+     * Copies <code>length</code> bytes starting at <code>address</code> to the position of <code>dst</code>, and
+     * advances the position.
+     */
+    public abstract void read(int address, ByteBuffer dst, int length);
+
+    public abstract int getWordVolatile(int address);
+
+    public abstract boolean compareAndSetWord(int address, int expected, int data);
+
+    public abstract int getAndSetWord(int address, int data);
+
+    public abstract int getAndAddWord(int address, int data);
+
+    public abstract int getAndAndWord(int address, int data);
+
+    public abstract int getAndOrWord(int address, int data);
+
+    public abstract int getAndXorWord(int address, int data);
+
+    public int getAndMaxWord(int address, int data) {
+        int value;
+        do value = getWordVolatile(address);
+        while (!compareAndSetWord(address, value, Math.max(value, data)));
+        return value;
     }
 
-    public int getWord(int address) {
-        return mData.getInt(address);
+    public int getAndMinWord(int address, int data) {
+        int value;
+        do value = getWordVolatile(address);
+        while (!compareAndSetWord(address, value, Math.min(value, data)));
+        return value;
     }
 
     public String getASCII(int address, int count) {
-        final var builder = new StringBuilder();
+        final var bytes = new byte[count];
+        read(address, bytes, 0, count);
 
-        mData.position(address);
-        for (int i = 0; i < count; i++)
-            builder.append((char) mData.get());
+        final var builder = new StringBuilder(count);
+        for (final var b : bytes)
+            builder.append((char) b);
 
         return builder.toString();
     }
@@ -0,0 +1,378 @@
+package io.scriptor.riscvm.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Sparse memory covering the whole 32-bit address space. Pages of {@link #PAGE_SIZE} bytes are looked up through a
+ * two-level page table and only allocated on their first store, pages that were never written read as zero. The
+ * configured size only bounds the region whose code gets cached, see {@link #getSize()}.
+ * <p>
+ * Forking shares all pages between parent and child, a shared page is only copied once either of them stores into it
+ * (copy-on-write).
+ * <p>
+ * Accesses crossing a page boundary take a slower path. Pages where a device is mapped are never allocated, looking up
+ * an unallocated page yields an empty array for them instead, so the access fails its bounds check and goes to the
+ * device.
+ */
+public class PagedMemory extends Memory {
+
+    private static final VarHandle HALF = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.nativeOrder());
+    private static final VarHandle WORD = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle SHARED = MethodHandles.arrayElementVarHandle(boolean[].class);
+    private static final VarHandle PAGE = MethodHandles.arrayElementVarHandle(byte[][].class);
+    private static final VarHandle LEAF = MethodHandles.arrayElementVarHandle(byte[][][].class);
+
+    private static final int LEAF_SHIFT = 10;
+    private static final int LEAF_SIZE = 1 << LEAF_SHIFT;
+    private static final int LEAF_MASK = LEAF_SIZE - 1;
+    private static final int ROOT_SHIFT = PAGE_SHIFT + LEAF_SHIFT;
+    private static final int ROOT_SIZE = 1 << (32 - ROOT_SHIFT);
+
+    /**
+     * stands in for every page that was not written yet, must never be modified
+     */
+    private static final byte[] ZERO = new byte[PAGE_SIZE];
+    /**
+     * stands in for every page where a device is mapped
+     */
+    private static final byte[] DEVICE = new byte[0];
+
+    /**
+     * first level of the page table, each leaf maps {@link #LEAF_SIZE} pages
+     */
+    private final byte[][][] mRoot;
+    /**
+     * pages that may still be referenced by a fork, they have to be copied before the first store
+     */
+    private final boolean[][] mShared;
+
+    public PagedMemory(Machine machine, int size) {
+        this(machine, size, new byte[ROOT_SIZE][][], new boolean[ROOT_SIZE][]);
+    }
+
+    private PagedMemory(Machine machine, int size, byte[][][] root, boolean[][] shared) {
+        super(machine, size);
+        this.mRoot = root;
+        this.mShared = shared;
+    }
+
+    @Override
+    public long getLimit() {
+        return 1L << 32;
+    }
+
+    @Override
+    protected synchronized void clear() {
+        for (int leaf = 0; leaf < ROOT_SIZE; leaf++) {
+            LEAF.setRelease(mRoot, leaf, null);
+            mShared[leaf] = null;
+        }
+    }
+
+    /**
+     * Shares all pages with the returned child. Must not be called while a hart of this memory's machine runs.
+     */
+    @Override
+    protected synchronized Memory fork(Machine machine) {
+        final var root = new byte[ROOT_SIZE][][];
+        final var shared = new boolean[ROOT_SIZE][];
+        for (int leaf = 0; leaf < ROOT_SIZE; leaf++) {
+            if (mRoot[leaf] == null)
+                continue;
+            root[leaf] = mRoot[leaf].clone();
+            shared[leaf] = new boolean[LEAF_SIZE];
+            for (int page = 0; page < LEAF_SIZE; page++)
+                if (mRoot[leaf][page] != null) {
+                    SHARED.setRelease(mShared[leaf], page, true);
+                    shared[leaf][page] = true;
+                }
+        }
+        return new PagedMemory(machine, getSize(), root, shared);
+    }
+
+    /**
+     * @return the number of pages that were allocated
+     */
+    public int getResidentPages() {
+        return countPages(false);
+    }
+
+    /**
+     * @return the number of allocated pages not shared with any fork
+     */
+    public int getPrivatePages() {
+        return countPages(true);
+    }
+
+    private synchronized int countPages(boolean exclusive) {
+        int count = 0;
+        for (int leaf = 0; leaf < ROOT_SIZE; leaf++) {
+            if (mRoot[leaf] == null)
+                continue;
+            for (int page = 0; page < LEAF_SIZE; page++)
+                if (mRoot[leaf][page] != null && !(exclusive && mShared[leaf][page]))
+                    count++;
+        }
+        return count;
+    }
+
+    @Override
+    protected synchronized void forEachPageBeyond(int first, IntConsumer consumer) {
+        for (int leaf = first >>> LEAF_SHIFT; leaf < ROOT_SIZE; leaf++) {
+            if (mRoot[leaf] == null)
+                continue;
+            for (int page = 0; page < LEAF_SIZE; page++) {
+                final var index = leaf << LEAF_SHIFT | page;
+                if (index >= first && mRoot[leaf][page] != null)
+                    consumer.accept(index);
+            }
+        }
+    }
+
+    private byte[] readable(int address) {
+        final var leaf = mRoot[address >>> ROOT_SHIFT];
+        if (leaf != null) {
+            final var page = leaf[(address >>> PAGE_SHIFT) & LEAF_MASK];
+            if (page != null)
+                return page;
+        }
+        return unallocated(address);
+    }
+
+    private byte[] unallocated(int address) {
+        return getMachine().getBus().isMapped(address) ? DEVICE : ZERO;
+    }
+
+    private byte[] writable(int address) {
+        final var index = address >>> ROOT_SHIFT;
+        final var leaf = (byte[][]) LEAF.getAcquire(mRoot, index);
+        if (leaf != null) {
+            final var slot = (address >>> PAGE_SHIFT) & LEAF_MASK;
+            // the copy of a shared page is published before its flag gets cleared, so the flag has to be read first
+            if (!(boolean) SHARED.getAcquire(mShared[index], slot)) {
+                final var page = (byte[]) PAGE.getAcquire(leaf, slot);
+                if (page != null)
+                    return page;
+            }
+        }
+        return allocate(address);
+    }
+
+    /**
+     * Allocates the page holding <code>address</code>, or copies it if it is shared with a fork.
+     */
+    private synchronized byte[] allocate(int address) {
+        if (getMachine().getBus().isMapped(address))
+            return DEVICE;
+
+        final var index = address >>> ROOT_SHIFT;
+        final var slot = (address >>> PAGE_SHIFT) & LEAF_MASK;
+
+        if (mRoot[index] == null) {
+            mShared[index] = new boolean[LEAF_SIZE];
+            LEAF.setRelease(mRoot, index, new byte[LEAF_SIZE][]);
+        }
+
+        // another hart may have allocated or copied the page while this one was waiting
+        final var leaf = mRoot[index];
+        if (leaf[slot] == null) {
+            PAGE.setRelease(leaf, slot, new byte[PAGE_SIZE]);
+        } else if (mShared[index][slot]) {
+            PAGE.setRelease(leaf, slot, leaf[slot].clone());
+            SHARED.setRelease(mShared[index], slot, false);
+        }
+        return leaf[slot];
+    }
+
+    @Override
+    public void setByte(int address, byte data) {
+        try {
+            writable(address)[address & PAGE_MASK] = data;
+        } catch (IndexOutOfBoundsException e) {
+            storeDevice(address, 1, data, e);
+            return;
+        }
+        written(address, 1);
+    }
+
+    @Override
+    public byte getByte(int address) {
+        try {
+            return readable(address)[address & PAGE_MASK];
+        } catch (IndexOutOfBoundsException e) {
+            return (byte) loadDevice(address, 1, e);
+        }
+    }
+
+    @Override
+    public void setHalf(int address, short data) {
+        final var offset = address & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2) {
+            try {
+                HALF.set(writable(address), offset, data);
+            } catch (IndexOutOfBoundsException e) {
+                storeDevice(address, 2, data, e);
+                return;
+            }
+            written(address, 2);
+            return;
+        }
+        final var bytes = new byte[2];
+        HALF.set(bytes, 0, data);
+        write(address, bytes, 0, 2);
+    }
+
+    @Override
+    public short getHalf(int address) {
+        final var offset = address & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2) {
+            try {
+                return (short) HALF.get(readable(address), offset);
+            } catch (IndexOutOfBoundsException e) {
+                return (short) loadDevice(address, 2, e);
+            }
+        }
+        final var bytes = new byte[2];
+        read(address, bytes, 0, 2);
+        return (short) HALF.get(bytes, 0);
+    }
+
+    @Override
+    public void setWord(int address, int data) {
+        final var offset = address & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4) {
+            try {
+                WORD.set(writable(address), offset, data);
+            } catch (IndexOutOfBoundsException e) {
+                storeDevice(address, 4, data, e);
+                return;
+            }
+            written(address, 4);
+            return;
+        }
+        final var bytes = new byte[4];
+        WORD.set(bytes, 0, data);
+        write(address, bytes, 0, 4);
+    }
+
+    @Override
+    public int getWord(int address) {
+        final var offset = address & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4) {
+            try {
+                return (int) WORD.get(readable(address), offset);
+            } catch (IndexOutOfBoundsException e) {
+                return loadDevice(address, 4, e);
+            }
+        }
+        final var bytes = new byte[4];
+        read(address, bytes, 0, 4);
+        return (int) WORD.get(bytes, 0);
+    }
+
+    /**
+     * Zeros written into pages that were never allocated are skipped, so loading an image full of gaps stays sparse.
+     */
+    @Override
+    public void write(int address, byte[] src, int offset, int length) {
+        for (int done = 0; done < length; ) {
+            final var at = address + done;
+            final var count = Math.min(length - done, PAGE_SIZE - (at & PAGE_MASK));
+            final var from = offset + done;
+            if (readable(at) != ZERO || Arrays.mismatch(src, from, from + count, ZERO, 0, count) >= 0)
+                System.arraycopy(src, from, writable(at), at & PAGE_MASK, count);
+            done += count;
+        }
+        if (length > 0) written(address, length);
+    }
+
+    @Override
+    public void read(int address, byte[] dst, int offset, int length) {
+        for (int done = 0; done < length; ) {
+            final var at = address + done;
+            final var count = Math.min(length - done, PAGE_SIZE - (at & PAGE_MASK));
+            System.arraycopy(readable(at), at & PAGE_MASK, dst, offset + done, count);
+            done += count;
+        }
+    }
+
+    @Override
+    public void write(int address, ByteBuffer src, int length) {
+        for (int done = 0; done < length; ) {
+            final var at = address + done;
+            final var count = Math.min(length - done, PAGE_SIZE - (at & PAGE_MASK));
+            src.get(writable(at), at & PAGE_MASK, count);
+            done += count;
+        }
+        if (length > 0) written(address, length);
+    }
+
+    @Override
+    public void read(int address, ByteBuffer dst, int length) {
+        for (int done = 0; done < length; ) {
+            final var at = address + done;
+            final var count = Math.min(length - done, PAGE_SIZE - (at & PAGE_MASK));
+            dst.put(readable(at), at & PAGE_MASK, count);
+            done += count;
+        }
+    }
+
+    @Override
+    public int getWordVolatile(int address) {
+        // the acquiring reads make a page allocated or copied by another hart visible
+        final var leaf = (byte[][]) LEAF.getAcquire(mRoot, address >>> ROOT_SHIFT);
+        if (leaf == null)
+            return 0;
+        final var page = (byte[]) PAGE.getAcquire(leaf, (address >>> PAGE_SHIFT) & LEAF_MASK);
+        if (page == null)
+            return 0;
+        return (int) WORD.getVolatile(page, address & PAGE_MASK);
+    }
+
+    @Override
+    public boolean compareAndSetWord(int address, int expected, int data) {
+        final var success = (boolean) WORD.compareAndSet(writable(address), address & PAGE_MASK, expected, data);
+        if (success) written(address, 4);
+        return success;
+    }
+
+    @Override
+    public int getAndSetWord(int address, int data) {
+        final var value = (int) WORD.getAndSet(writable(address), address & PAGE_MASK, data);
+        written(address, 4);
+        return value;
+    }
+
+    @Override
+    public int getAndAddWord(int address, int data) {
+        final var value = (int) WORD.getAndAdd(writable(address), address & PAGE_MASK, data);
+        written(address, 4);
+        return value;
+    }
+
+    @Override
+    public int getAndAndWord(int address, int data) {
+        final var value = (int) WORD.getAndBitwiseAnd(writable(address), address & PAGE_MASK, data);
+        written(address, 4);
+        return value;
+    }
+
+    @Override
+    public int getAndOrWord(int address, int data) {
+        final var value = (int) WORD.getAndBitwiseOr(writable(address), address & PAGE_MASK, data);
+        written(address, 4);
+        return value;
+    }
+
+    @Override
+    public int getAndXorWord(int address, int data) {
+        final var value = (int) WORD.getAndBitwiseXor(writable(address), address & PAGE_MASK, data);
+        written(address, 4);
+        return value;
+    }
+}
@@ -0,0 +1,228 @@
+package io.scriptor.riscvm.vm;
+
+import io.scriptor.riscvm.core.Decoded;
+import io.scriptor.riscvm.core.ISA;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Execution counters of a single hart, enabled with {@link CPU#setProfile(Profile)}.
+ * <p>
+ * The engines do not count single instructions, they report runs of consecutively executed instructions, a basic
+ * block or the straight-line code between two taken branches. A run adds one to the start and subtracts one behind
+ * its end of a difference array, so recording it costs the same no matter how long it is. The count of each program
+ * counter is the prefix sum over that array, computed when the profile is read. Besides that, the taken conditional
+ * branches are counted, a branch to the next instruction counts as not taken. The threaded engines count complete
+ * executions of a block in the block itself, and only add them up when the profile is read.
+ * <p>
+ * Counts per opcode are derived from the counts per program counter and the instruction found in memory when the
+ * profile is read, so code modified after it ran is attributed to the new instruction. Read the profile only while its
+ * hart does not run.
+ */
+public class Profile {
+
+    /**
+     * @param taken    how often a conditional branch was taken, 0 for other instructions
+     * @param notTaken how often a conditional branch fell through, 0 for other instructions
+     */
+    public record Entry(int pc, ISA opcode, long count, long taken, long notTaken) {
+    }
+
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * chunks of the difference array, indexed by the instruction index, i.e. the program counter divided by four
+     */
+    private final long[][] mDelta = new long[1 << (30 - CHUNK_SHIFT)][];
+    private final long[][] mTaken = new long[1 << (30 - CHUNK_SHIFT)][];
+    /**
+     * blocks holding counts that were not added yet
+     */
+    private final List<ThreadedEngine.Block> mBlocks = new ArrayList<>();
+
+    private static long[] chunk(long[][] chunks, int index) {
+        final var chunk = chunks[index >>> CHUNK_SHIFT];
+        if (chunk != null)
+            return chunk;
+        return chunks[index >>> CHUNK_SHIFT] = new long[CHUNK_SIZE];
+    }
+
+    /**
+     * Counts one execution of every instruction from <code>start</code> up to, but excluding, <code>end</code>.
+     */
+    void run(int start, int end) {
+        if (start == end)
+            return;
+        final var first = start >>> 2;
+        final var last = end >>> 2;
+        chunk(mDelta, first)[first & CHUNK_MASK]++;
+        // a run reaching the end of the address space has nothing to subtract from
+        if (last != 0)
+            chunk(mDelta, last)[last & CHUNK_MASK]--;
+    }
+
+    /**
+     * Counts the conditional branch at <code>pc</code> as taken if it continues at <code>target</code>.
+     */
+    void branch(int pc, int target) {
+        if (target == pc + 4)
+            return;
+        taken(pc, 1);
+    }
+
+    private void taken(int pc, long count) {
+        final var index = pc >>> 2;
+        chunk(mTaken, index)[index & CHUNK_MASK] += count;
+    }
+
+    /**
+     * Makes <code>block</code> count its executions for this profile, the counts it holds for another profile are
+     * added to that one first.
+     */
+    void add(ThreadedEngine.Block block) {
+        if (block.profile != null)
+            block.profile.collect(block);
+        block.profile = this;
+        mBlocks.add(block);
+    }
+
+    private void collect(ThreadedEngine.Block block) {
+        if (block.hits != 0) {
+            final var first = block.start >>> 2;
+            final var last = block.end >>> 2;
+            chunk(mDelta, first)[first & CHUNK_MASK] += block.hits;
+            if (last != 0)
+                chunk(mDelta, last)[last & CHUNK_MASK] -= block.hits;
+        }
+        if (block.taken != 0)
+            taken(block.end - 4, block.taken);
+        block.hits = 0;
+        block.taken = 0;
+    }
+
+    private void collect() {
+        for (final var block : mBlocks)
+            if (block.profile == this)
+                collect(block);
+        mBlocks.removeIf(block -> block.profile != this || !block.valid);
+    }
+
+    public void reset() {
+        for (final var block : mBlocks)
+            if (block.profile == this) {
+                block.hits = 0;
+                block.taken = 0;
+            }
+        Arrays.fill(mDelta, null);
+        Arrays.fill(mTaken, null);
+    }
+
+    /**
+     * @return the executed instructions, ordered by program counter
+     */
+    public List<Entry> getEntries(Memory memory) {
+        collect();
+
+        final var entries = new ArrayList<Entry>();
+        final var decoded = new Decoded();
+
+        long count = 0;
+        for (int c = 0; c < mDelta.length; c++) {
+            final var delta = mDelta[c];
+            if (delta == null) {
+                // a run longer than a chunk has to be continued over it
+                if (count != 0)
+                    for (int i = 0; i < CHUNK_SIZE; i++)
+                        entries.add(entry(memory, decoded, c << CHUNK_SHIFT | i, count));
+                continue;
+            }
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                count += delta[i];
+                if (count != 0)
+                    entries.add(entry(memory, decoded, c << CHUNK_SHIFT | i, count));
+            }
+        }
+        return entries;
+    }
+
+    private Entry entry(Memory memory, Decoded decoded, int index, long count) {
+        final var pc = index << 2;
+        ISA opcode = null;
+        try {
+            if (decoded.decode(memory.getWord(pc)))
+                opcode = decoded.isa;
+        } catch (RuntimeException ignored) {
+            // the code is gone, e.g. the memory got reset
+        }
+
+        final var isBranch = opcode == ISA.BEQ || opcode == ISA.BNE || opcode == ISA.BLT || opcode == ISA.BGE;
+        final var chunk = mTaken[index >>> CHUNK_SHIFT];
+        final var taken = isBranch && chunk != null ? chunk[index & CHUNK_MASK] : 0;
+        return new Entry(pc, opcode, count, taken, isBranch ? count - taken : 0);
+    }
+
+    /**
+     * @return the number of retired instructions per opcode, indexed by {@link ISA#ordinal()}
+     */
+    public long[] getOpcodeCounts(Memory memory) {
+        final var counts = new long[ISA.values().length];
+        for (final var entry : getEntries(memory))
+            if (entry.opcode() != null)
+                counts[entry.opcode().ordinal()] += entry.count();
+        return counts;
+    }
+
+    /**
+     * @return a table of the executed opcodes and the <code>limit</code> most executed program counters
+     */
+    public String report(Memory memory, int limit) {
+        final var entries = getEntries(memory);
+        final var builder = new StringBuilder();
+
+        long total = 0;
+        final var counts = new long[ISA.values().length];
+        for (final var entry : entries) {
+            total += entry.count();
+            if (entry.opcode() != null)
+                counts[entry.opcode().ordinal()] += entry.count();
+        }
+        builder.append(String.format("Retired: %d%n", total));
+        if (total == 0)
+            return builder.toString();
+
+        final var opcodes = ISA.values();
+        final var order = new ArrayList<ISA>();
+        for (final var opcode : opcodes)
+            if (counts[opcode.ordinal()] != 0)
+                order.add(opcode);
+        order.sort(Comparator.comparingLong((ISA opcode) -> counts[opcode.ordinal()]).reversed());
+
+        builder.append("----------- Opcodes ---------\n");
+        for (final var opcode : order)
+            builder.append(String.format(
+                    "%-10s %14d %6.2f%%%n",
+                    opcode,
+                    counts[opcode.ordinal()],
+                    100.0 * counts[opcode.ordinal()] / total));
+
+        entries.sort(Comparator.comparingLong(Entry::count).reversed());
+        builder.append("----------- Hot PCs ---------\n");
+        for (final var entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            builder.append(String.format(
+                    "%08X %-10s %14d %6.2f%%",
+                    entry.pc(),
+                    entry.opcode(),
+                    entry.count(),
+                    100.0 * entry.count() / total));
+            if (entry.taken() != 0 || entry.notTaken() != 0)
+                builder.append(String.format(" taken %d not taken %d", entry.taken(), entry.notTaken()));
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -1,8 +1,14 @@
 package io.scriptor.riscvm.vm;
 
 import io.scriptor.riscvm.asm.Assembler;
+import io.scriptor.riscvm.core.ISA;
 
 import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Predicate;
 
 public class RiscVM {
 
@@ -10,8 +16,19 @@ public class RiscVM {
     private final Machine mMachine;
 
     public RiscVM(VMConfig config) {
+        this(config, new Machine(config));
+    }
+
+    private RiscVM(VMConfig config, Machine machine) {
         mConfig = config;
-        mMachine = new Machine(config);
+        mMachine = machine;
+    }
+
+    /**
+     * @return a new vm continuing from the current state of this one, see {@link Machine#fork()}
+     */
+    public RiscVM fork() {
+        return new RiscVM(mConfig, mMachine.fork());
     }
 
     public Machine getMachine() {
@@ -19,7 +36,8 @@ public class RiscVM {
     }
 
     public void resetCPU() {
-        mMachine.getCPU().reset();
+        for (int hart = 0; hart < mMachine.getHarts(); hart++)
+            mMachine.getCPU(hart).reset();
     }
 
     public void resetMemory() {
@@ -31,20 +49,200 @@ public class RiscVM {
     }
 
     public void assemble(BufferedInputStream stream) {
-        Assembler.assemble(stream, mMachine.getMemory().getBuffer(), mConfig.sections());
+        final byte[] source;
+        try {
+            source = stream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        assemble(ByteBuffer.wrap(source));
+    }
+
+    /**
+     * Assembles the bytes between position and limit of <code>source</code>, e.g. a memory-mapped file.
+     */
+    public void assemble(ByteBuffer source) {
+        final var memory = mMachine.getMemory();
+        final int end;
+        if (memory instanceof DirectMemory direct) {
+            end = Assembler.assemble(source, direct.getBuffer(), mConfig.sections());
+        } else {
+            // the assembler needs a contiguous buffer, so assemble into a copy and write it back
+            final var buffer = ByteBuffer.allocate(memory.getSize()).order(ByteOrder.nativeOrder());
+            memory.read(0, buffer.array(), 0, buffer.capacity());
+            end = Assembler.assemble(source, buffer, mConfig.sections());
+            memory.write(0, buffer.array(), 0, buffer.capacity());
+        }
+        memory.invalidate();
+        // the heap starts on the first page behind the image
+        mMachine.getSyscalls().setBreak((end + Memory.PAGE_SIZE - 1) & ~(Memory.PAGE_SIZE - 1));
+    }
+
+    /**
+     * Stops every hart in front of the instruction at <code>pc</code>, with {@link RunResult.Status#BREAKPOINT}.
+     * Running the hart again continues with that instruction.
+     */
+    public void addBreakpoint(int pc) {
+        mMachine.getBreakpoints().add(pc);
+    }
+
+    public void removeBreakpoint(int pc) {
+        mMachine.getBreakpoints().remove(pc);
+    }
+
+    public void clearBreakpoints() {
+        mMachine.getBreakpoints().clear();
+    }
+
+    /**
+     * Stops every hart behind a load or store of the <code>size</code> bytes at <code>address</code>, with
+     * {@link RunResult.Status#WATCHPOINT}.
+     *
+     * @param mode {@link Watchpoints#READ}, {@link Watchpoints#WRITE} or both
+     */
+    public Watchpoints.Watchpoint addWatchpoint(int address, int size, int mode) {
+        return mMachine.getWatchpoints().add(address, size, mode);
+    }
+
+    public void removeWatchpoint(Watchpoints.Watchpoint watchpoint) {
+        mMachine.getWatchpoints().remove(watchpoint);
     }
 
+    /**
+     * Executes a single instruction and reports exits, breaks and faults on the console.
+     *
+     * @return true if the guest can continue
+     */
     public boolean step() {
+        final var result = run(1);
+        switch (result.status()) {
+            case EXITED -> System.out.printf("Exit Code %d%n", result.exitCode());
+            case BREAKPOINT -> System.out.println("Reached Break Point");
+            case WATCHPOINT -> System.out.println("Reached Watch Point");
+            case FAULT -> System.err.println(result.fault().getMessage());
+            case BUDGET_EXHAUSTED -> {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Executes up to <code>maxCycles</code> instructions with the configured engine. Guest exits, breaks and faults end
+     * the run and are reported in the result instead of being thrown.
+     */
+    public RunResult run(long maxCycles) {
+        return run(0, maxCycles);
+    }
+
+    /**
+     * Like {@link #run(long)}, but on the given hart.
+     */
+    public RunResult run(int hart, long maxCycles) {
+        return run(hart, maxCycles, null);
+    }
+
+    /**
+     * Like {@link #run(int, long)}, but also stops with {@link RunResult.Status#STOPPED} as soon as
+     * <code>until</code> holds, e.g. <code>cpu -> cpu.get(ISA.RegisterAlias.A0) == 42</code>. The condition is tested
+     * behind every block of the threaded engines, and behind every instruction of the interpreter. Stopping after a
+     * number of instructions is just the budget, stopping at a program counter is {@link #runUntil(int, int, long)}.
+     */
+    public RunResult runUntil(int hart, long maxCycles, Predicate<CPU> until) {
+        return run(hart, maxCycles, until);
+    }
+
+    /**
+     * Runs until the hart is about to execute the instruction at <code>pc</code>, which is a breakpoint for the
+     * duration of the run, and reports reaching it with {@link RunResult.Status#STOPPED}.
+     */
+    public RunResult runUntil(int hart, int pc, long maxCycles) {
+        final var breakpoints = mMachine.getBreakpoints();
+        final var temporary = !breakpoints.contains(pc);
+        if (temporary)
+            breakpoints.add(pc);
         try {
-            mMachine.cycle();
-            return true;
+            final var result = run(hart, maxCycles, null);
+            if (result.status() != RunResult.Status.BREAKPOINT || result.pc() != pc)
+                return result;
+            return new RunResult(RunResult.Status.STOPPED, result.retired(), pc, 0, null);
+        } finally {
+            if (temporary)
+                breakpoints.remove(pc);
+        }
+    }
+
+    private RunResult run(int hart, long maxCycles, Predicate<CPU> until) {
+        if (!Events.isEnabled())
+            return execute(hart, maxCycles, until);
+
+        final var event = new Events.Run();
+        event.begin();
+        final var start = System.nanoTime();
+
+        final var result = execute(hart, maxCycles, until);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.hart = hart;
+            event.budget = maxCycles;
+            event.instructions = result.retired();
+            final var micros = (System.nanoTime() - start) / 1e3;
+            event.mips = micros > 0 ? result.retired() / micros : 0;
+            event.status = result.status().name();
+            event.pc = result.pc();
+            event.commit();
+        }
+        return result;
+    }
+
+    private RunResult execute(int hart, long maxCycles, Predicate<CPU> until) {
+        final var cpu = mMachine.getCPU(hart);
+        final var retired = cpu.getRetired();
+
+        cpu.resume();
+        try {
+            if (until == null) mMachine.run(hart, maxCycles);
+            else mMachine.run(hart, maxCycles, until);
         } catch (ExitSignal e) {
-            System.out.println(e.getMessage());
-        } catch (BreakPoint b) {
-            System.out.println("Reached Break Point");
-        } catch (Throwable t) {
-            System.err.println(t.getMessage());
+            Events.exit(hart, e.code);
+            return new RunResult(RunResult.Status.EXITED, cpu.getRetired() - retired, cpu.get(ISA.RegisterAlias.PC), e.code, null);
+        } catch (RuntimeException e) {
+            return new RunResult(RunResult.Status.FAULT, cpu.getRetired() - retired, cpu.get(ISA.RegisterAlias.PC), 0, e);
+        } finally {
+            mMachine.getSyscalls().flush();
         }
-        return false;
+
+        var halt = cpu.getHalt();
+        if (halt == null)
+            halt = until != null && until.test(cpu) ? RunResult.Status.STOPPED : RunResult.Status.BUDGET_EXHAUSTED;
+        return new RunResult(
+                halt,
+                cpu.getRetired() - retired,
+                cpu.get(ISA.RegisterAlias.PC),
+                cpu.getExitCode(),
+                null);
+    }
+
+    /**
+     * Runs every hart on its own thread, each for up to <code>maxCycles</code> instructions, and waits for all of
+     * them to stop.
+     *
+     * @return the result of each hart, indexed by hart id
+     */
+    public RunResult[] runHarts(long maxCycles) throws InterruptedException {
+        final var harts = mMachine.getHarts();
+        final var results = new RunResult[harts];
+        final var threads = new Thread[harts];
+
+        for (int i = 0; i < harts; i++) {
+            final var hart = i;
+            threads[i] = new Thread(() -> results[hart] = run(hart, maxCycles), "hart-" + hart);
+            threads[i].start();
+        }
+        for (final var thread : threads)
+            thread.join();
+
+        return results;
     }
 }
@@ -0,0 +1,52 @@
+package io.scriptor.riscvm.vm;
+
+/**
+ * Outcome of {@link RiscVM#run(long)}.
+ *
+ * @param status   why the run stopped
+ * @param retired  number of instructions retired during the run
+ * @param pc       program counter after the run, for faults this points behind the faulting instruction
+ * @param exitCode exit code passed by the guest, only valid for {@link Status#EXITED}
+ * @param fault    the error raised by the guest, only valid for {@link Status#FAULT}
+ */
+public record RunResult(Status status, long retired, int pc, int exitCode, Throwable fault) {
+
+    public enum Status {
+        /**
+         * the guest called exit
+         */
+        EXITED,
+        /**
+         * the guest executed an ebreak, or reached a breakpoint set by the host
+         */
+        BREAKPOINT,
+        /**
+         * the cycle budget ran out before the guest stopped
+         */
+        BUDGET_EXHAUSTED,
+        /**
+         * the guest executed an invalid instruction or accessed memory out of range
+         */
+        FAULT,
+        /**
+         * a run-until condition was met, see {@link RiscVM#runUntil(int, long, java.util.function.Predicate)}
+         */
+        STOPPED,
+        /**
+         * a guest access hit a watchpoint, see {@link Watchpoints}
+         */
+        WATCHPOINT,
+    }
+
+    @Override
+    public String toString() {
+        return switch (status) {
+            case EXITED -> String.format("Exit Code %d after %d instructions", exitCode, retired);
+            case BREAKPOINT -> String.format("Break Point at %08X after %d instructions", pc, retired);
+            case BUDGET_EXHAUSTED -> String.format("Paused at %08X after %d instructions", pc, retired);
+            case FAULT -> String.format("Fault at %08X after %d instructions: %s", pc, retired, fault.getMessage());
+            case STOPPED -> String.format("Stopped at %08X after %d instructions", pc, retired);
+            case WATCHPOINT -> String.format("Watch Point at %08X after %d instructions", pc, retired);
+        };
+    }
+}
@@ -0,0 +1,193 @@
+package io.scriptor.riscvm.vm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Saves and restores the state of a {@link Machine}: the registers, halt reason and instruction count of every hart,
+ * the program break and the memory contents. A full snapshot holds every page that is not all zeros, a delta snapshot only the pages
+ * written since the previous snapshot of the same machine. To restore a delta, the machine has to be in the state of
+ * the snapshot the delta was taken after, i.e. restore the full snapshot and all following deltas in order.
+ * <p>
+ * Layout, all values big-endian:
+ * <pre>
+ * int   magic 'RVSN'
+ * short version
+ * byte  kind, 0 full or 1 delta
+ * long  id
+ * long  base id, 0 for full snapshots
+ * int   memory size
+ * int   harts
+ * per hart:
+ *   int[32] registers, the program counter last
+ *   byte    halt status ordinal, -1 while running
+ *   int     exit code
+ *   long    retired instructions
+ * int   initial program break
+ * int   program break
+ * per page:
+ *   int     page index
+ *   byte[]  page contents, {@link Memory#PAGE_SIZE} bytes
+ * int   -1
+ * </pre>
+ * No hart of the machine may run while a snapshot is saved or restored.
+ */
+public final class Snapshot {
+
+    private static final int MAGIC = 0x5256534E;
+    private static final short VERSION = 2;
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+    private static final int END = -1;
+
+    private Snapshot() {
+    }
+
+    public static void save(Machine machine, Path path, boolean delta) throws IOException {
+        try (final var out = new BufferedOutputStream(Files.newOutputStream(path))) {
+            save(machine, out, delta);
+        }
+    }
+
+    /**
+     * Writes a snapshot of <code>machine</code> to <code>stream</code>. A delta falls back to a full snapshot if
+     * the machine has no previous snapshot, or its memory was reset since then.
+     */
+    public static void save(Machine machine, OutputStream stream, boolean delta) throws IOException {
+        final var memory = machine.getMemory();
+        final var base = machine.getSnapshot();
+        if (base == 0 || memory.isCleared())
+            delta = false;
+
+        final var id = newId();
+        final var out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(delta ? DELTA : FULL);
+        out.writeLong(id);
+        out.writeLong(delta ? base : 0);
+        out.writeInt(memory.getSize());
+        out.writeInt(machine.getHarts());
+
+        for (int hart = 0; hart < machine.getHarts(); hart++) {
+            final var cpu = machine.getCPU(hart);
+            for (final var register : cpu.getRegisters())
+                out.writeInt(register);
+            out.writeByte(cpu.getHalt() == null ? -1 : cpu.getHalt().ordinal());
+            out.writeInt(cpu.getExitCode());
+            out.writeLong(cpu.getRetired());
+        }
+
+        final var syscalls = machine.getSyscalls();
+        out.writeInt(syscalls.getInitialBreak());
+        out.writeInt(syscalls.getBreak());
+
+        final var page = new byte[Memory.PAGE_SIZE];
+        final var zero = new byte[Memory.PAGE_SIZE];
+        final var failure = new IOException[1];
+        final var full = !delta;
+        memory.forEachPage(delta, index -> {
+            if (failure[0] != null)
+                return;
+            memory.read(index << Memory.PAGE_SHIFT, page, 0, page.length);
+            // a full snapshot starts from zeroed memory, a delta has to overwrite pages that became zero
+            if (full && Arrays.equals(page, zero))
+                return;
+            try {
+                out.writeInt(index);
+                out.write(page);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+
+        out.writeInt(END);
+        out.flush();
+
+        memory.clearDirty();
+        machine.setSnapshot(id);
+    }
+
+    public static void restore(Machine machine, Path path) throws IOException {
+        try (final var in = new BufferedInputStream(Files.newInputStream(path))) {
+            restore(machine, in);
+        }
+    }
+
+    /**
+     * Reads a snapshot from <code>stream</code> into <code>machine</code>, see {@link Snapshot} for the requirements
+     * of a delta.
+     */
+    public static void restore(Machine machine, InputStream stream) throws IOException {
+        final var memory = machine.getMemory();
+        final var in = new DataInputStream(stream);
+
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a machine snapshot");
+        final var version = in.readShort();
+        if (version != VERSION)
+            throw new IOException(String.format("unsupported snapshot version %d", version));
+
+        final var kind = in.readByte();
+        final var id = in.readLong();
+        final var base = in.readLong();
+        if (kind == DELTA && base != machine.getSnapshot())
+            throw new IOException(String.format(
+                    "delta snapshot on top of %016X does not apply to machine at %016X",
+                    base,
+                    machine.getSnapshot()));
+
+        final var size = in.readInt();
+        final var harts = in.readInt();
+        if (size != memory.getSize() || harts != machine.getHarts())
+            throw new IOException(String.format(
+                    "snapshot of %d bytes and %d harts does not fit machine of %d bytes and %d harts",
+                    size,
+                    harts,
+                    memory.getSize(),
+                    machine.getHarts()));
+
+        final var statuses = RunResult.Status.values();
+        for (int hart = 0; hart < harts; hart++) {
+            final var cpu = machine.getCPU(hart);
+            final var registers = cpu.getRegisters();
+            for (int i = 0; i < registers.length; i++)
+                registers[i] = in.readInt();
+            final var halt = in.readByte();
+            cpu.restore(halt < 0 ? null : statuses[halt], in.readInt(), in.readLong());
+        }
+
+        final var initialBreak = in.readInt();
+        machine.getSyscalls().restoreBreak(initialBreak, in.readInt());
+
+        if (kind == FULL)
+            memory.reset();
+
+        final var page = new byte[Memory.PAGE_SIZE];
+        for (int index; (index = in.readInt()) != END; ) {
+            in.readFully(page);
+            memory.write(index << Memory.PAGE_SHIFT, page, 0, page.length);
+        }
+
+        memory.clearDirty();
+        machine.setSnapshot(id);
+    }
+
+    private static long newId() {
+        long id;
+        do id = ThreadLocalRandom.current().nextLong();
+        while (id == 0);
+        return id;
+    }
+}
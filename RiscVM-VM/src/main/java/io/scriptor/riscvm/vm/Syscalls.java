@@ -0,0 +1,466 @@
+package io.scriptor.riscvm.vm;
+
+import io.scriptor.riscvm.core.ISA;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Dispatches environment calls by the number in a7, following the RISC-V Linux numbering. Arguments are passed in a0
+ * to a5, the result is returned in a0, errors as negated errno values. Unknown calls return <code>-ENOSYS</code>.
+ * <p>
+ * File descriptors map to {@link HostFile}s, 0 to 2 are the standard streams of the host. Guest paths are resolved
+ * against a root directory and may not leave it. One table serves all harts of a machine, calls are serialized.
+ */
+public class Syscalls extends VMComponent {
+
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @return the value for a0
+         */
+        int call(CPU cpu) throws IOException;
+    }
+
+    /**
+     * Records the results of calls and replays them later, see {@link TimeTravel}.
+     */
+    interface Journal {
+        /**
+         * Called before a call is executed.
+         *
+         * @return true if the journal already set the result, then the call is not executed
+         */
+        boolean replay(CPU cpu, int number);
+
+        /**
+         * Called after a call was executed, with <code>result</code> already in a0.
+         */
+        void record(CPU cpu, int number, int result);
+    }
+
+    public static final int OPENAT = 56;
+    public static final int CLOSE = 57;
+    public static final int LSEEK = 62;
+    public static final int READ = 63;
+    public static final int WRITE = 64;
+    public static final int FSTAT = 80;
+    public static final int EXIT = 93;
+    public static final int EXIT_GROUP = 94;
+    public static final int CLOCK_GETTIME = 113;
+    public static final int BRK = 214;
+
+    private static final int ENOENT = 2;
+    private static final int EIO = 5;
+    private static final int EBADF = 9;
+    private static final int EACCES = 13;
+    private static final int EFAULT = 14;
+    private static final int EINVAL = 22;
+    private static final int ESPIPE = 29;
+    private static final int ENAMETOOLONG = 36;
+    private static final int ENOSYS = 38;
+
+    private static final int AT_FDCWD = -100;
+    private static final int O_ACCMODE = 3;
+    private static final int O_WRONLY = 1;
+    private static final int O_RDWR = 2;
+    private static final int O_CREAT = 0100;
+    private static final int O_TRUNC = 01000;
+    private static final int O_APPEND = 02000;
+
+    private static final int S_IFCHR = 0020000;
+    private static final int S_IFREG = 0100000;
+    /**
+     * size of the 32-bit <code>struct stat</code> from <code>asm-generic/stat.h</code>
+     */
+    private static final int STAT_SIZE = 80;
+    /**
+     * offsets of the fields of <code>struct stat</code> that get filled in, all others are zero
+     */
+    private static final int ST_MODE = 8;
+    private static final int ST_NLINK = 12;
+    private static final int ST_SIZE = 32;
+    private static final int ST_BLKSIZE = 36;
+    private static final int PATH_MAX = 4096;
+
+    private final Handler[] mHandlers = new Handler[512];
+    private final List<HostFile> mFiles = new ArrayList<>();
+    private Path mRoot = Path.of("").toAbsolutePath();
+    private int mInitialBreak;
+    private int mBreak;
+    private Journal mJournal;
+
+    public Syscalls(Machine machine) {
+        super(machine);
+
+        register(OPENAT, this::openat);
+        register(CLOSE, this::close);
+        register(LSEEK, this::lseek);
+        register(READ, this::read);
+        register(WRITE, this::write);
+        register(FSTAT, this::fstat);
+        register(EXIT, this::exit);
+        register(EXIT_GROUP, this::exit);
+        register(CLOCK_GETTIME, this::clockGettime);
+        register(BRK, this::brk);
+
+        openStandardStreams();
+    }
+
+    private void openStandardStreams() {
+        mFiles.add(new HostFile(Channels.newChannel(System.in), null, true));
+        mFiles.add(new HostFile(null, HostFile.console(() -> System.out), true));
+        mFiles.add(new HostFile(null, HostFile.console(() -> System.err), true));
+    }
+
+    /**
+     * Installs <code>handler</code> for the call <code>number</code>, replacing the previous one.
+     */
+    public void register(int number, Handler handler) {
+        mHandlers[number] = handler;
+    }
+
+    public void setRoot(Path root) {
+        mRoot = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Sets the initial program break, usually the end of the loaded image.
+     */
+    public void setBreak(int address) {
+        mInitialBreak = address;
+        mBreak = address;
+    }
+
+    /**
+     * Executes the call requested by <code>cpu</code>.
+     */
+    public synchronized void call(CPU cpu) {
+        final var number = cpu.get(ISA.RegisterAlias.A7);
+        if (mJournal != null && mJournal.replay(cpu, number))
+            return;
+
+        final var handler = number >= 0 && number < mHandlers.length ? mHandlers[number] : null;
+
+        final var event = Events.isEnabled() ? new Events.Syscall() : null;
+        if (event != null) event.begin();
+
+        int result;
+        if (handler == null) {
+            result = -ENOSYS;
+        } else {
+            try {
+                result = handler.call(cpu);
+            } catch (NoSuchFileException e) {
+                result = -ENOENT;
+            } catch (IndexOutOfBoundsException e) {
+                result = -EFAULT;
+            } catch (IOException e) {
+                result = -EIO;
+            }
+        }
+        cpu.set(ISA.RegisterAlias.A0, result);
+        if (mJournal != null)
+            mJournal.record(cpu, number, result);
+
+        if (event != null && event.shouldCommit()) {
+            event.hart = cpu.getHart();
+            event.number = number;
+            event.result = result;
+            event.commit();
+        }
+    }
+
+    void setJournal(Journal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * @return the number of bytes a call with the given <code>result</code> wrote to guest memory at a1
+     */
+    static int output(int number, int result) {
+        if (result < 0)
+            return 0;
+        return switch (number) {
+            case READ -> result;
+            case FSTAT -> STAT_SIZE;
+            case CLOCK_GETTIME -> 8;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Writes all buffered output to the host.
+     */
+    public synchronized void flush() {
+        for (final var file : mFiles)
+            if (file != null) {
+                try {
+                    file.flush();
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+    }
+
+    /**
+     * Closes all files the guest opened and resets the program break.
+     */
+    public synchronized void reset() {
+        for (final var file : mFiles)
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+        mFiles.clear();
+        openStandardStreams();
+        mBreak = mInitialBreak;
+    }
+
+    int getInitialBreak() {
+        return mInitialBreak;
+    }
+
+    int getBreak() {
+        return mBreak;
+    }
+
+    /**
+     * Restores the program break saved in a snapshot.
+     */
+    void restoreBreak(int initial, int current) {
+        mInitialBreak = initial;
+        mBreak = current;
+    }
+
+    /**
+     * Takes over the root and program break of <code>syscalls</code>, but none of its open files.
+     */
+    void copyFrom(Syscalls syscalls) {
+        mRoot = syscalls.mRoot;
+        mInitialBreak = syscalls.mInitialBreak;
+        mBreak = syscalls.mBreak;
+    }
+
+    private HostFile file(int fd) {
+        return fd >= 0 && fd < mFiles.size() ? mFiles.get(fd) : null;
+    }
+
+    /*
+     * openat:
+     *  a0: directory fd, only AT_FDCWD is supported
+     *  a1: path, zero terminated
+     *  a2: flags
+     *  a3: mode, ignored
+     */
+    private int openat(CPU cpu) throws IOException {
+        final var dirfd = cpu.get(ISA.RegisterAlias.A0);
+        final var flags = cpu.get(ISA.RegisterAlias.A2);
+
+        final var name = string(cpu.get(ISA.RegisterAlias.A1));
+        if (name == null)
+            return -ENAMETOOLONG;
+        if (dirfd != AT_FDCWD && !name.startsWith("/"))
+            return -EBADF;
+
+        final Path path;
+        try {
+            path = mRoot.resolve(name.replaceFirst("^/+", "")).normalize();
+        } catch (InvalidPathException e) {
+            return -ENOENT;
+        }
+        if (!path.startsWith(mRoot))
+            return -EACCES;
+        // symbolic links below the root may still lead out of it, so the directory has to resolve into the real root
+        // and the file itself is never followed
+        final var directory = path.equals(mRoot) ? path : path.getParent();
+        if (!directory.toRealPath().startsWith(mRoot.toRealPath()))
+            return -EACCES;
+
+        final var options = new HashSet<OpenOption>();
+        options.add(LinkOption.NOFOLLOW_LINKS);
+        final var access = flags & O_ACCMODE;
+        if (access != O_WRONLY) options.add(StandardOpenOption.READ);
+        if (access == O_WRONLY || access == O_RDWR) options.add(StandardOpenOption.WRITE);
+        if ((flags & O_CREAT) != 0) options.add(StandardOpenOption.CREATE);
+        if ((flags & O_TRUNC) != 0) options.add(StandardOpenOption.TRUNCATE_EXISTING);
+        if ((flags & O_APPEND) != 0) options.add(StandardOpenOption.APPEND);
+
+        final var channel = FileChannel.open(path, options);
+        final var file = new HostFile(
+                options.contains(StandardOpenOption.READ) ? channel : null,
+                options.contains(StandardOpenOption.WRITE) ? channel : null,
+                false);
+
+        final var fd = mFiles.indexOf(null);
+        if (fd >= 0) {
+            mFiles.set(fd, file);
+            return fd;
+        }
+        mFiles.add(file);
+        return mFiles.size() - 1;
+    }
+
+    /*
+     * close:
+     *  a0: fd
+     */
+    private int close(CPU cpu) throws IOException {
+        final var fd = cpu.get(ISA.RegisterAlias.A0);
+        final var file = file(fd);
+        if (file == null)
+            return -EBADF;
+        mFiles.set(fd, null);
+        file.close();
+        return 0;
+    }
+
+    /*
+     * lseek:
+     *  a0: fd
+     *  a1: offset
+     *  a2: whence, SEEK_SET, SEEK_CUR or SEEK_END
+     */
+    private int lseek(CPU cpu) throws IOException {
+        final var file = file(cpu.get(ISA.RegisterAlias.A0));
+        if (file == null)
+            return -EBADF;
+        if (file.isTerminal())
+            return -ESPIPE;
+        final var position = file.seek(cpu.get(ISA.RegisterAlias.A1), cpu.get(ISA.RegisterAlias.A2));
+        return position < 0 ? -EINVAL : (int) position;
+    }
+
+    /*
+     * read:
+     *  a0: fd
+     *  a1: buf
+     *  a2: count
+     */
+    private int read(CPU cpu) throws IOException {
+        final var file = file(cpu.get(ISA.RegisterAlias.A0));
+        if (file == null || !file.isReadable())
+            return -EBADF;
+        // show pending output, like a prompt, before waiting for input
+        if (file.isTerminal())
+            flush();
+        return file.read(getMachine().getMemory(), cpu.get(ISA.RegisterAlias.A1), cpu.get(ISA.RegisterAlias.A2));
+    }
+
+    /*
+     * write:
+     *  a0: fd
+     *  a1: buf
+     *  a2: count
+     */
+    private int write(CPU cpu) throws IOException {
+        final var file = file(cpu.get(ISA.RegisterAlias.A0));
+        if (file == null || !file.isWritable())
+            return -EBADF;
+        return file.write(getMachine().getMemory(), cpu.get(ISA.RegisterAlias.A1), cpu.get(ISA.RegisterAlias.A2));
+    }
+
+    /*
+     * fstat:
+     *  a0: fd
+     *  a1: struct stat
+     */
+    private int fstat(CPU cpu) throws IOException {
+        final var file = file(cpu.get(ISA.RegisterAlias.A0));
+        if (file == null)
+            return -EBADF;
+
+        final var memory = getMachine().getMemory();
+        final var buf = cpu.get(ISA.RegisterAlias.A1);
+        memory.write(buf, new byte[STAT_SIZE], 0, STAT_SIZE);
+        memory.setWord(buf + ST_MODE, file.isTerminal() ? S_IFCHR | 0620 : S_IFREG | 0644);
+        memory.setWord(buf + ST_NLINK, 1);
+        memory.setWord(buf + ST_SIZE, (int) file.size());
+        memory.setWord(buf + ST_BLKSIZE, HostFile.BUFFER_SIZE);
+        return 0;
+    }
+
+    /*
+     * exit, exit_group:
+     *  a0: code
+     */
+    private int exit(CPU cpu) {
+        final var code = cpu.get(ISA.RegisterAlias.A0);
+        cpu.exit(code);
+        flush();
+        return code;
+    }
+
+    /*
+     * clock_gettime:
+     *  a0: clock, CLOCK_REALTIME or CLOCK_MONOTONIC
+     *  a1: struct timespec, 32-bit seconds and nanoseconds
+     */
+    private int clockGettime(CPU cpu) {
+        final long seconds;
+        final int nanos;
+        switch (cpu.get(ISA.RegisterAlias.A0)) {
+            case 0 -> {
+                final var now = Instant.now();
+                seconds = now.getEpochSecond();
+                nanos = now.getNano();
+            }
+            case 1 -> {
+                final var now = System.nanoTime();
+                seconds = now / 1_000_000_000L;
+                nanos = (int) (now % 1_000_000_000L);
+            }
+            default -> {
+                return -EINVAL;
+            }
+        }
+
+        final var memory = getMachine().getMemory();
+        final var tp = cpu.get(ISA.RegisterAlias.A1);
+        memory.setWord(tp, (int) seconds);
+        memory.setWord(tp + 4, nanos);
+        return 0;
+    }
+
+    /*
+     * brk:
+     *  a0: the new program break, or 0 to query it
+     */
+    private int brk(CPU cpu) {
+        final var address = cpu.get(ISA.RegisterAlias.A0);
+        // like linux, a break that cannot be set leaves the old one in place
+        if (Integer.compareUnsigned(address, mInitialBreak) >= 0
+                && Integer.toUnsignedLong(address) <= getMachine().getMemory().getLimit())
+            mBreak = address;
+        return mBreak;
+    }
+
+    /**
+     * @return the zero terminated string at <code>address</code>, or null if it is longer than PATH_MAX
+     */
+    private String string(int address) {
+        final var memory = getMachine().getMemory();
+        final var builder = new StringBuilder();
+        for (int i = 0; i < PATH_MAX; i++) {
+            final var c = memory.getByte(address + i);
+            if (c == 0)
+                return builder.toString();
+            builder.append((char) (c & 0xFF));
+        }
+        return null;
+    }
+}
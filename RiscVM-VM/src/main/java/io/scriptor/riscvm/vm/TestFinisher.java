@@ -0,0 +1,33 @@
+package io.scriptor.riscvm.vm;
+
+/**
+ * The SiFive test device: storing <code>0x5555</code> exits the guest with code 0, storing
+ * <code>code &lt;&lt; 16 | 0x3333</code> exits with <code>code</code>. The exit is signalled with an
+ * {@link ExitSignal} from inside the store.
+ */
+public class TestFinisher implements Device {
+
+    /**
+     * where the test device of the QEMU virt machine is mapped
+     */
+    public static final int BASE = 0x00100000;
+    public static final int SIZE = 4;
+
+    private static final int PASS = 0x5555;
+    private static final int FAIL = 0x3333;
+
+    @Override
+    public int load(int offset, int width) {
+        return 0;
+    }
+
+    @Override
+    public void store(int offset, int width, int data) {
+        if (offset != 0)
+            return;
+        switch (data & 0xFFFF) {
+            case PASS -> throw new ExitSignal(0);
+            case FAIL -> throw new ExitSignal(data >>> 16);
+        }
+    }
+}
@@ -0,0 +1,801 @@
+package io.scriptor.riscvm.vm;
+
+import io.scriptor.riscvm.core.ISA;
+import io.scriptor.riscvm.core.Instruction;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Executes basic blocks instead of single instructions. A block is the run of instructions starting at some
+ * program counter up to the next branch, jump or environment call (or the end of its page). Each instruction
+ * gets translated once into a {@link Handler} with its operands already bound, so executing a block is just
+ * calling its handlers in order.
+ * <p>
+ * While translating, pairs that the assembler emits for pseudo instructions are fused into a single handler:
+ * <code>PUSH</code> (<code>SW</code> followed by <code>SUBI</code> of the base register), <code>POP</code>
+ * (<code>ADDI</code> of the base register followed by <code>LW</code>) and compare-and-branch sequences
+ * (<code>LI</code> followed by a conditional branch on the loaded register).
+ * <p>
+ * With the just-in-time compiler enabled, blocks that were entered often enough get translated into JVM bytecode by
+ * the {@link BlockCompiler}. The compiled code covers the block up to its first instruction the compiler does not
+ * support, the remaining handlers still run threaded.
+ * <p>
+ * Blocks translated while any watchpoint is set check each load, store and atomic against the {@link Watchpoints}
+ * and are not fused. The {@link Watchpoints} drop all blocks when the first one gets added or the last one removed.
+ * <p>
+ * Every hart has its own engine. Other harts may invalidate blocks concurrently, code written by one hart is only
+ * guaranteed to become visible to the others at their next block boundary.
+ */
+public class ThreadedEngine extends VMComponent {
+
+    /**
+     * @return false if the block has to be left after this handler
+     */
+    @FunctionalInterface
+    interface Handler {
+        boolean run();
+    }
+
+    /**
+     * A block translated by the {@link BlockCompiler}.
+     */
+    interface Compiled {
+        /**
+         * @return the number of instructions executed, the program counter is always set
+         */
+        int run(int[] registers, Memory memory, Block block, CPU cpu);
+    }
+
+    static final class Block {
+        final int start;
+        /**
+         * program counter behind the last instruction
+         */
+        int end;
+        /**
+         * number of instructions, fused handlers count twice
+         */
+        int size;
+        Handler[] handlers;
+        /**
+         * program counter of the first instruction of each handler
+         */
+        int[] first;
+        /**
+         * program counter to continue at if a handler leaves the block early
+         */
+        int[] exit;
+        /**
+         * program counter behind the instruction of a handler that may throw
+         */
+        int[] fault;
+        /**
+         * true if the last handler sets the program counter itself
+         */
+        boolean branch;
+        /**
+         * true if the last instruction is a conditional branch
+         */
+        boolean conditional;
+        /**
+         * true if the accesses of the block are checked against the {@link Watchpoints}
+         */
+        boolean watched;
+
+        /**
+         * the profile the following counts belong to
+         */
+        Profile profile;
+        /**
+         * number of complete executions not yet added to the profile
+         */
+        long hits;
+        /**
+         * how often the conditional branch at the end was taken, not yet added to the profile
+         */
+        long taken;
+        /**
+         * cleared as soon as one of the words of the block gets written to
+         */
+        boolean valid = true;
+
+        int entries;
+        Compiled compiled;
+        /**
+         * handler to continue with after the compiled code ran
+         */
+        int resume;
+
+        Block(int start) {
+            this.start = start;
+        }
+    }
+
+    private static final int MAX_BLOCK_SIZE = 64;
+    private static final int SLOTS = Memory.PAGE_SIZE >> 2;
+    private static final int COMPILE_THRESHOLD = 1000;
+
+    private final CPU mCPU;
+    private final boolean mCompile;
+    private final Block[][] mBlocks;
+
+    public ThreadedEngine(CPU cpu, int size, boolean compile) {
+        super(cpu.getMachine());
+        mCPU = cpu;
+        mCompile = compile;
+        mBlocks = new Block[Memory.pages(size)][];
+    }
+
+    /**
+     * Executes up to <code>budget</code> instructions, or until the guest exits or breaks. Blocks that do not fit
+     * into the remaining budget are single-stepped by the {@link CPU}, and so is the instruction of the breakpoint the
+     * hart stopped at.
+     *
+     * @return the number of instructions retired
+     */
+    public long run(long budget) {
+        final var cpu = mCPU;
+        // continue behind the breakpoint the hart stopped at, instead of interpreting the whole budget
+        long n = cpu.isTrapped() && budget > 0 ? cpu.run(1) : 0;
+
+        final var profile = cpu.getProfile();
+        if (profile != null)
+            return n + run(budget - n, profile);
+
+        while (n < budget && !cpu.isHalted()) {
+            final var block = lookup(cpu.get(ISA.RegisterAlias.PC));
+            if (block.size > budget - n)
+                return n + cpu.run(budget - n);
+            n += execute(block);
+        }
+        return n;
+    }
+
+    /**
+     * Like {@link #run(long)}, but counts every executed block for <code>profile</code>. Complete executions are only
+     * counted in the block, they get added to the profile when it is read.
+     */
+    private long run(long budget, Profile profile) {
+        final var cpu = mCPU;
+
+        long n = 0;
+        while (n < budget && !cpu.isHalted()) {
+            final var block = lookup(cpu.get(ISA.RegisterAlias.PC));
+            if (block.size > budget - n)
+                return n + cpu.run(budget - n);
+            n += execute(block, profile);
+        }
+        return n;
+    }
+
+    /**
+     * Like {@link #run(long)}, but also stops as soon as <code>until</code> holds, which is tested behind every
+     * block.
+     */
+    long run(long budget, Predicate<CPU> until) {
+        final var cpu = mCPU;
+        final var profile = cpu.getProfile();
+
+        long n = 0;
+        while (n < budget && !cpu.isHalted()) {
+            final var block = lookup(cpu.get(ISA.RegisterAlias.PC));
+            if (block.size > budget - n) n += cpu.run(1);
+            else if (profile != null) n += execute(block, profile);
+            else n += execute(block);
+            if (until.test(cpu))
+                break;
+        }
+        return n;
+    }
+
+    private int execute(Block block, Profile profile) {
+        final var cpu = mCPU;
+        if (block.profile != profile)
+            profile.add(block);
+
+        final var retired = cpu.getRetired();
+        final int count;
+        try {
+            count = execute(block);
+        } catch (RuntimeException e) {
+            profile.run(block.start, block.start + 4 * (int) (cpu.getRetired() - retired));
+            throw e;
+        }
+
+        if (count != block.size) {
+            profile.run(block.start, block.start + 4 * count);
+            return count;
+        }
+        block.hits++;
+        if (block.conditional && cpu.get(ISA.RegisterAlias.PC) != block.end)
+            block.taken++;
+        return count;
+    }
+
+    private int execute(Block block) {
+        final var cpu = mCPU;
+        final var handlers = block.handlers;
+
+        int i = 0;
+        if (block.compiled != null) {
+            final int count;
+            try {
+                count = block.compiled.run(cpu.getRegisters(), getMachine().getMemory(), block, cpu);
+            } catch (RuntimeException e) {
+                // the compiled code points the program counter behind the faulting instruction
+                cpu.retire((cpu.get(ISA.RegisterAlias.PC) - block.start) / 4 - 1);
+                throw e;
+            }
+            if (count == block.size || !block.valid || cpu.isHalted()) {
+                cpu.retire(count);
+                return count;
+            }
+            i = block.resume;
+        } else if (mCompile && ++block.entries == COMPILE_THRESHOLD) {
+            compile(block);
+        }
+
+        try {
+            while (i < handlers.length)
+                if (!handlers[i++].run()) {
+                    final var exit = block.exit[i - 1];
+                    final var count = (exit - block.start) / 4;
+                    cpu.set(ISA.RegisterAlias.PC, exit);
+                    cpu.retire(count);
+                    return count;
+                }
+        } catch (RuntimeException e) {
+            final var fault = block.fault[i - 1];
+            cpu.set(ISA.RegisterAlias.PC, fault);
+            cpu.retire((fault - block.start) / 4 - 1);
+            throw e;
+        }
+
+        if (!block.branch)
+            cpu.set(ISA.RegisterAlias.PC, block.end);
+        cpu.retire(block.size);
+        return block.size;
+    }
+
+    /**
+     * Drops the blocks covering the word at <code>address</code>. Blocks never cross a page and hold at most
+     * {@link #MAX_BLOCK_SIZE} instructions, so only the slots in front of the word can start one of them.
+     */
+    void drop(int address) {
+        final var index = address >>> Memory.PAGE_SHIFT;
+        if (index >= mBlocks.length)
+            return;
+        final var blocks = mBlocks[index];
+        if (blocks == null)
+            return;
+
+        final var word = address & ~3;
+        final var slot = InstructionCache.slot(word);
+        for (int i = Math.max(0, slot - MAX_BLOCK_SIZE + 1); i <= slot; i++) {
+            final var block = blocks[i];
+            // a block that only traps at a breakpoint still covers its word
+            if (block != null && word < Math.max(block.end, block.start + 4)) {
+                block.valid = false;
+                blocks[i] = null;
+            }
+        }
+    }
+
+    public void invalidate(int page) {
+        final var blocks = mBlocks[page];
+        if (blocks == null) return;
+        mBlocks[page] = null;
+        for (final var block : blocks)
+            if (block != null)
+                block.valid = false;
+    }
+
+    public void invalidate() {
+        for (int page = 0; page < mBlocks.length; page++)
+            invalidate(page);
+    }
+
+    private Block lookup(int pc) {
+        final var index = pc >>> Memory.PAGE_SHIFT;
+        if ((pc & 3) == 0 && index < mBlocks.length) {
+            final var blocks = mBlocks[index];
+            if (blocks != null) {
+                final var block = blocks[InstructionCache.slot(pc)];
+                if (block != null)
+                    return block;
+            }
+        }
+
+        final Block block;
+        try {
+            block = translate(pc);
+        } catch (RuntimeException e) {
+            mCPU.set(ISA.RegisterAlias.PC, pc + 4);
+            throw e;
+        }
+
+        // misaligned blocks are translated every time, just like the instruction cache does
+        if ((pc & 3) == 0 && index < mBlocks.length) {
+            // read the page once, another hart may invalidate it concurrently
+            var blocks = mBlocks[index];
+            if (blocks == null)
+                mBlocks[index] = blocks = new Block[SLOTS];
+            blocks[InstructionCache.slot(pc)] = block;
+        }
+        return block;
+    }
+
+    private Block translate(int pc) {
+        final var block = new Block(pc);
+        block.watched = !getMachine().getWatchpoints().isEmpty();
+        final var handlers = new Handler[MAX_BLOCK_SIZE];
+        final var first = new int[MAX_BLOCK_SIZE];
+        final var exit = new int[MAX_BLOCK_SIZE];
+        final var fault = new int[MAX_BLOCK_SIZE];
+
+        int n = 0;
+        var end = pc;
+        while (block.size < MAX_BLOCK_SIZE && isSamePage(pc, end)) {
+            final var page = fetch(end);
+            if (page == null) {
+                // let the block end in front of the invalid instruction, it throws once it is reached
+                if (n == 0) getMachine().getCache(mCPU.getHart()).fetch(end);
+                break;
+            }
+
+            final var slot = InstructionCache.slot(end);
+            final var op = page.opcode[slot];
+            if (op == ISA.NULL) {
+                // a breakpoint ends the block in front of it, a block starting at it only stops the cpu there
+                if (n == 0) {
+                    final var cpu = mCPU;
+                    final var at = end;
+                    handlers[n] = () -> {
+                        cpu.trap(at);
+                        return false;
+                    };
+                    first[n] = end;
+                    exit[n] = end;
+                    fault[n] = end + 4;
+                    n++;
+                    block.size++;
+                }
+                break;
+            }
+
+            final var following = end + 4;
+            // fused pairs would hide the program counter of their access from the watchpoints
+            if (!block.watched && block.size + 1 < MAX_BLOCK_SIZE && isSamePage(pc, following) && fetch(following) == page) {
+                final var fused = fuse(block, page, end);
+                if (fused != null) {
+                    final var second = page.opcode[InstructionCache.slot(following)];
+                    handlers[n] = fused;
+                    first[n] = end;
+                    // only the store of a fused push can leave the block early, before its second instruction
+                    exit[n] = op == ISA.SW ? following : following + 4;
+                    // a fused pop retires its first instruction before the load may throw
+                    fault[n] = second == ISA.LW ? following + 4 : following;
+                    n++;
+                    block.size += 2;
+                    end += 8;
+
+                    if (isTerminator(second)) {
+                        block.branch = true;
+                        block.conditional = isConditional(second);
+                        break;
+                    }
+                    continue;
+                }
+            }
+
+            handlers[n] = translate(block, op, end, page.rd[slot], page.rs1[slot], page.rs2[slot], page.imm[slot]);
+            if (block.watched && isAccess(op))
+                handlers[n] = watch(handlers[n], op, end, page.rs1[slot], page.rs2[slot], page.imm[slot]);
+            first[n] = end;
+            exit[n] = following;
+            fault[n] = following;
+            n++;
+            block.size++;
+            end += 4;
+
+            if (isTerminator(op)) {
+                block.branch = true;
+                block.conditional = isConditional(op);
+                break;
+            }
+        }
+
+        block.end = end;
+        block.handlers = Arrays.copyOf(handlers, n);
+        block.first = Arrays.copyOf(first, n);
+        block.exit = Arrays.copyOf(exit, n);
+        block.fault = Arrays.copyOf(fault, n);
+        return block;
+    }
+
+    private static boolean isSamePage(int a, int b) {
+        return (a >>> Memory.PAGE_SHIFT) == (b >>> Memory.PAGE_SHIFT);
+    }
+
+    /**
+     * @return the decoded page holding the instruction, or null if the word at <code>pc</code> is no instruction
+     */
+    private InstructionCache.Page fetch(int pc) {
+        try {
+            return getMachine().getCache(mCPU.getHart()).fetch(pc);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void compile(Block block) {
+        final var cache = getMachine().getCache(mCPU.getHart());
+        final var n = block.size;
+        final var ops = new ISA[n];
+        final var rd = new int[n];
+        final var rs1 = new int[n];
+        final var rs2 = new int[n];
+        final var imm = new int[n];
+
+        int count = 0;
+        for (int pc = block.start; count < n; pc += 4, count++) {
+            final var page = cache.fetch(pc);
+            final var slot = InstructionCache.slot(pc);
+            if (!BlockCompiler.isCompilable(page.opcode[slot]))
+                break;
+            ops[count] = page.opcode[slot];
+            rd[count] = page.rd[slot];
+            rs1[count] = page.rs1[slot];
+            rs2[count] = page.rs2[slot];
+            imm[count] = page.imm[slot];
+        }
+
+        // the compiled code has to stop in front of a handler, not in the middle of a fused pair
+        final var boundary = block.start + 4 * count;
+        var resume = 0;
+        while (resume < block.first.length && block.first[resume] < boundary)
+            resume++;
+        if (count < n && (resume == block.first.length || block.first[resume] != boundary)) {
+            resume--;
+            count = (block.first[resume] - block.start) / 4;
+        }
+
+        if (count == 0)
+            return;
+
+        block.resume = resume;
+        block.compiled = BlockCompiler.compile(block.start, ops, rd, rs1, rs2, imm, count, block.watched);
+    }
+
+    /**
+     * @return a single handler for the instruction at <code>pc</code> and the one following it, or null if the pair
+     * does not form a superinstruction
+     */
+    private Handler fuse(Block block, InstructionCache.Page page, int pc) {
+        final var cpu = mCPU;
+        final var memory = getMachine().getMemory();
+
+        final var a = InstructionCache.slot(pc);
+        final var b = a + 1;
+        final var first = page.opcode[a];
+        final var second = page.opcode[b];
+
+        // push: sw src, base, offset; subi base, base, size
+        if (first == ISA.SW && (second == ISA.SUBI || second == ISA.ADDI)
+                && page.rd[b] == page.rs2[a] && page.rs1[b] == page.rs2[a]) {
+            final var src = page.rs1[a];
+            final var base = page.rs2[a];
+            final var offset = page.imm[a];
+            final var size = second == ISA.SUBI ? -page.imm[b] : page.imm[b];
+            return () -> {
+                memory.setWord(cpu.get(base) + offset, cpu.get(src));
+                if (!block.valid)
+                    return false;
+                cpu.set(base, cpu.get(base) + size);
+                return true;
+            };
+        }
+
+        // pop: addi base, base, size; lw dst, base, offset
+        if ((first == ISA.ADDI || first == ISA.SUBI) && second == ISA.LW
+                && page.rd[a] == page.rs1[a] && page.rs1[b] == page.rd[a]) {
+            final var base = page.rd[a];
+            final var size = first == ISA.SUBI ? -page.imm[a] : page.imm[a];
+            final var dst = page.rd[b];
+            final var offset = page.imm[b];
+            return () -> {
+                cpu.set(base, cpu.get(base) + size);
+                cpu.set(dst, memory.getWord(cpu.get(base) + offset));
+                return true;
+            };
+        }
+
+        // compare and branch: li tmp, value; bxx lhs, rhs, target
+        if (first == ISA.ADDI && page.rs1[a] == 0
+                && (page.rs1[b] == page.rd[a] || page.rs2[b] == page.rd[a])) {
+            final var tmp = page.rd[a];
+            final var value = page.imm[a];
+            final var lhs = page.rs1[b];
+            final var rhs = page.rs2[b];
+            final var target = page.imm[b];
+            final var next = pc + 8;
+            return switch (second) {
+                case BEQ -> () -> {
+                    cpu.set(tmp, value);
+                    cpu.set(ISA.RegisterAlias.PC, cpu.get(lhs) == cpu.get(rhs) ? target : next);
+                    return true;
+                };
+                case BNE -> () -> {
+                    cpu.set(tmp, value);
+                    cpu.set(ISA.RegisterAlias.PC, cpu.get(lhs) != cpu.get(rhs) ? target : next);
+                    return true;
+                };
+                case BLT -> () -> {
+                    cpu.set(tmp, value);
+                    cpu.set(ISA.RegisterAlias.PC, cpu.get(lhs) < cpu.get(rhs) ? target : next);
+                    return true;
+                };
+                case BGE -> () -> {
+                    cpu.set(tmp, value);
+                    cpu.set(ISA.RegisterAlias.PC, cpu.get(lhs) >= cpu.get(rhs) ? target : next);
+                    return true;
+                };
+                default -> null;
+            };
+        }
+
+        return null;
+    }
+
+    private static boolean isTerminator(ISA op) {
+        return switch (op) {
+            case BEQ, BNE, BLT, BGE, JAL, JALR, ECALL, EBREAK -> true;
+            default -> !isHandled(op);
+        };
+    }
+
+    private static boolean isConditional(ISA op) {
+        return switch (op) {
+            case BEQ, BNE, BLT, BGE -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isAccess(ISA op) {
+        return switch (op) {
+            case LW, LH, LB, SW, SH, SB,
+                    LR_W, SC_W, AMOSWAP_W, AMOADD_W, AMOAND_W, AMOOR_W, AMOXOR_W, AMOMAX_W, AMOMIN_W -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isHandled(ISA op) {
+        return switch (op) {
+            case AND, OR, XOR, ANDI, ORI, XORI,
+                    SLL, SRL, SRA, SLLI, SRLI, SRAI,
+                    ADD, SUB, ADDI, SUBI, MUL, DIV, REM,
+                    LW, LH, LB, SW, SH, SB,
+                    BEQ, BNE, BLT, BGE, JAL, JALR,
+                    SLT, SLTI,
+                    LR_W, SC_W, AMOSWAP_W, AMOADD_W, AMOAND_W, AMOOR_W, AMOXOR_W, AMOMAX_W, AMOMIN_W,
+                    ECALL, EBREAK -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return a handler running <code>handler</code> and checking the access of the instruction at <code>pc</code>
+     * against the {@link Watchpoints}, it leaves the block if the hart stopped
+     */
+    private Handler watch(Handler handler, ISA op, int pc, int rs1, int rs2, int imm) {
+        final var cpu = mCPU;
+        final var memory = getMachine().getMemory();
+        return () -> {
+            // the base register may be overwritten by the instruction itself
+            final var address = CPU.address(op, cpu.get(rs1), cpu.get(rs2), imm);
+            final var result = handler.run();
+            if (memory.isWatched(address, 4) && cpu.watch(pc, op, address))
+                return false;
+            return result;
+        };
+    }
+
+    private Handler translate(Block block, ISA op, int pc, int rd, int rs1, int rs2, int imm) {
+        final var cpu = mCPU;
+        final var memory = getMachine().getMemory();
+        final var next = pc + 4;
+
+        return switch (op) {
+            case AND -> () -> {
+                cpu.set(rd, cpu.get(rs1) & cpu.get(rs2));
+                return true;
+            };
+            case OR -> () -> {
+                cpu.set(rd, cpu.get(rs1) | cpu.get(rs2));
+                return true;
+            };
+            case XOR -> () -> {
+                cpu.set(rd, cpu.get(rs1) ^ cpu.get(rs2));
+                return true;
+            };
+            case ANDI -> () -> {
+                cpu.set(rd, cpu.get(rs1) & imm);
+                return true;
+            };
+            case ORI -> () -> {
+                cpu.set(rd, cpu.get(rs1) | imm);
+                return true;
+            };
+            case XORI -> () -> {
+                cpu.set(rd, cpu.get(rs1) ^ imm);
+                return true;
+            };
+            case SLL -> () -> {
+                cpu.set(rd, cpu.get(rs1) << cpu.get(rs2));
+                return true;
+            };
+            case SRL -> () -> {
+                cpu.set(rd, cpu.get(rs1) >>> cpu.get(rs2));
+                return true;
+            };
+            case SRA -> () -> {
+                cpu.set(rd, cpu.get(rs1) >> cpu.get(rs2));
+                return true;
+            };
+            case SLLI -> () -> {
+                cpu.set(rd, cpu.get(rs1) << imm);
+                return true;
+            };
+            case SRLI -> () -> {
+                cpu.set(rd, cpu.get(rs1) >>> imm);
+                return true;
+            };
+            case SRAI -> () -> {
+                cpu.set(rd, cpu.get(rs1) >> imm);
+                return true;
+            };
+            case ADD -> () -> {
+                cpu.set(rd, cpu.get(rs1) + cpu.get(rs2));
+                return true;
+            };
+            case SUB -> () -> {
+                cpu.set(rd, cpu.get(rs1) - cpu.get(rs2));
+                return true;
+            };
+            case ADDI -> () -> {
+                cpu.set(rd, cpu.get(rs1) + imm);
+                return true;
+            };
+            case SUBI -> () -> {
+                cpu.set(rd, cpu.get(rs1) - imm);
+                return true;
+            };
+            case MUL -> () -> {
+                cpu.set(rd, cpu.get(rs1) * cpu.get(rs2));
+                return true;
+            };
+            case DIV -> () -> {
+                cpu.set(rd, cpu.get(rs1) / cpu.get(rs2));
+                return true;
+            };
+            case REM -> () -> {
+                cpu.set(rd, cpu.get(rs1) % cpu.get(rs2));
+                return true;
+            };
+
+            case LW -> () -> {
+                cpu.set(rd, memory.getWord(cpu.get(rs1) + imm));
+                return true;
+            };
+            case LH -> () -> {
+                cpu.set(rd, memory.getHalf(cpu.get(rs1) + imm));
+                return true;
+            };
+            case LB -> () -> {
+                cpu.set(rd, memory.getByte(cpu.get(rs1) + imm));
+                return true;
+            };
+            case SW -> () -> {
+                memory.setWord(cpu.get(rs2) + imm, cpu.get(rs1));
+                return block.valid;
+            };
+            case SH -> () -> {
+                memory.setHalf(cpu.get(rs2) + imm, (short) cpu.get(rs1));
+                return block.valid;
+            };
+            case SB -> () -> {
+                memory.setByte(cpu.get(rs2) + imm, (byte) cpu.get(rs1));
+                return block.valid;
+            };
+
+            case BEQ -> () -> {
+                cpu.set(ISA.RegisterAlias.PC, cpu.get(rs1) == cpu.get(rs2) ? imm : next);
+                return true;
+            };
+            case BNE -> () -> {
+                cpu.set(ISA.RegisterAlias.PC, cpu.get(rs1) != cpu.get(rs2) ? imm : next);
+                return true;
+            };
+            case BLT -> () -> {
+                cpu.set(ISA.RegisterAlias.PC, cpu.get(rs1) < cpu.get(rs2) ? imm : next);
+                return true;
+            };
+            case BGE -> () -> {
+                cpu.set(ISA.RegisterAlias.PC, cpu.get(rs1) >= cpu.get(rs2) ? imm : next);
+                return true;
+            };
+            case JAL -> () -> {
+                cpu.set(rd, next);
+                cpu.set(ISA.RegisterAlias.PC, imm);
+                return true;
+            };
+            case JALR -> () -> {
+                cpu.set(rd, next);
+                cpu.set(ISA.RegisterAlias.PC, cpu.get(rs1) + imm);
+                return true;
+            };
+
+            case SLT -> () -> {
+                cpu.set(rd, cpu.get(rs1) < cpu.get(rs2) ? 1 : 0);
+                return true;
+            };
+            case SLTI -> () -> {
+                cpu.set(rd, cpu.get(rs1) < imm ? 1 : 0);
+                return true;
+            };
+
+            case LR_W -> () -> {
+                cpu.set(rd, cpu.loadReserved(cpu.get(rs1)));
+                return true;
+            };
+            case SC_W -> () -> {
+                cpu.set(rd, cpu.storeConditional(cpu.get(rs1), cpu.get(rs2)) ? 0 : 1);
+                return block.valid;
+            };
+            case AMOSWAP_W -> () -> {
+                cpu.set(rd, memory.getAndSetWord(cpu.get(rs1), cpu.get(rs2)));
+                return block.valid;
+            };
+            case AMOADD_W -> () -> {
+                cpu.set(rd, memory.getAndAddWord(cpu.get(rs1), cpu.get(rs2)));
+                return block.valid;
+            };
+            case AMOAND_W -> () -> {
+                cpu.set(rd, memory.getAndAndWord(cpu.get(rs1), cpu.get(rs2)));
+                return block.valid;
+            };
+            case AMOOR_W -> () -> {
+                cpu.set(rd, memory.getAndOrWord(cpu.get(rs1), cpu.get(rs2)));
+                return block.valid;
+            };
+            case AMOXOR_W -> () -> {
+                cpu.set(rd, memory.getAndXorWord(cpu.get(rs1), cpu.get(rs2)));
+                return block.valid;
+            };
+            case AMOMAX_W -> () -> {
+                cpu.set(rd, memory.getAndMaxWord(cpu.get(rs1), cpu.get(rs2)));
+                return block.valid;
+            };
+            case AMOMIN_W -> () -> {
+                cpu.set(rd, memory.getAndMinWord(cpu.get(rs1), cpu.get(rs2)));
+                return block.valid;
+            };
+
+            case ECALL -> () -> {
+                cpu.set(ISA.RegisterAlias.PC, next);
+                cpu.ecall();
+                return !cpu.isHalted();
+            };
+            case EBREAK -> () -> {
+                cpu.set(ISA.RegisterAlias.PC, next);
+                cpu.ebreak();
+                return !cpu.isHalted();
+            };
+
+            default -> () -> {
+                throw new IllegalStateException(String.format("unhandled instruction %s", Instruction.valueOf(memory.getWord(pc))));
+            };
+        };
+    }
+}
@@ -0,0 +1,338 @@
+package io.scriptor.riscvm.vm;
+
+import io.scriptor.riscvm.core.ISA;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Lets a single-hart vm run backwards. While running forward, a {@link Snapshot} of the machine is kept in memory every
+ * <code>interval</code> instructions, a delta of the pages written since the previous one with a full snapshot every
+ * {@link #FULL_INTERVAL} checkpoints. The results of environment calls, and the guest memory they wrote, are recorded
+ * in a journal.
+ * <p>
+ * Any earlier state is reconstructed by restoring the nearest checkpoint before it and executing forward again. While
+ * re-executing, environment calls are not executed on the host, their recorded results are replayed instead, so the
+ * guest sees the same inputs and output is not repeated. Once execution passes the recorded history, calls run live
+ * again. Loads from devices are not recorded, programs reading the {@link Uart} or {@link Timer} may diverge.
+ * <p>
+ * Breakpoints, watchpoints and guest <code>ebreak</code>s do not stop re-execution, only running forward behind the
+ * recorded history does.
+ * <p>
+ * The time travel owns the snapshot chain of its machine, do not save or restore other snapshots meanwhile.
+ */
+public class TimeTravel {
+
+    /**
+     * number of checkpoints after which a full snapshot is taken, so restoring never applies more deltas than that
+     */
+    public static final int FULL_INTERVAL = 16;
+
+    /**
+     * @param id the id of the snapshot, see {@link Machine#getSnapshot()}
+     */
+    private record Checkpoint(long position, int calls, long id, boolean full, byte[] snapshot) {
+    }
+
+    /**
+     * @param output what the call wrote to guest memory at <code>address</code>, null if nothing
+     */
+    private record Call(int number, int result, int address, byte[] output) {
+    }
+
+    private final RiscVM mVM;
+    private final Machine mMachine;
+    private final CPU mCPU;
+    private final long mInterval;
+
+    private final List<Checkpoint> mCheckpoints = new ArrayList<>();
+    private final List<Call> mCalls = new ArrayList<>();
+    /**
+     * the furthest position reached so far, the end of the recorded history
+     */
+    private long mEnd;
+    /**
+     * index of the next call in the journal, equal to its size while running live
+     */
+    private int mCall;
+
+    private final Syscalls.Journal mJournal = new Syscalls.Journal() {
+        @Override
+        public boolean replay(CPU cpu, int number) {
+            return TimeTravel.this.replay(cpu, number);
+        }
+
+        @Override
+        public void record(CPU cpu, int number, int result) {
+            TimeTravel.this.record(cpu, number, result);
+        }
+    };
+
+    /**
+     * Starts recording at the current state of <code>vm</code>.
+     *
+     * @param interval number of instructions between two checkpoints
+     */
+    public TimeTravel(RiscVM vm, long interval) {
+        if (vm.getMachine().getHarts() != 1)
+            throw new IllegalArgumentException("time travel needs a machine with a single hart");
+        if (interval < 1)
+            throw new IllegalArgumentException(String.format("checkpoint interval must be positive, got %d", interval));
+
+        mVM = vm;
+        mMachine = vm.getMachine();
+        mCPU = mMachine.getCPU();
+        mInterval = interval;
+
+        mMachine.getSyscalls().setJournal(mJournal);
+        mEnd = getPosition();
+        checkpoint();
+    }
+
+    /**
+     * Stops recording and forgets the history.
+     */
+    public void close() {
+        mMachine.getSyscalls().setJournal(null);
+        mCheckpoints.clear();
+        mCalls.clear();
+    }
+
+    /**
+     * @return the number of instructions retired, the point in time the machine is at
+     */
+    public long getPosition() {
+        return mCPU.getRetired();
+    }
+
+    /**
+     * @return the earliest position that can be travelled back to
+     */
+    public long getStart() {
+        return mCheckpoints.get(0).position();
+    }
+
+    /**
+     * @return the number of checkpoints and their total size in bytes
+     */
+    public String getStatistics() {
+        long bytes = 0;
+        for (final var checkpoint : mCheckpoints)
+            bytes += checkpoint.snapshot().length;
+        return String.format("%d checkpoints, %d bytes, %d calls", mCheckpoints.size(), bytes, mCalls.size());
+    }
+
+    /**
+     * Runs forward for up to <code>maxCycles</code> instructions, taking checkpoints on the way.
+     */
+    public RunResult run(long maxCycles) {
+        final var start = getPosition();
+        RunResult result;
+        do {
+            // checkpoints are only taken behind the last one, the history before it is complete
+            final var next = last().position() + mInterval;
+            result = mVM.run(Math.min(maxCycles - (getPosition() - start), next - getPosition()));
+            if (getPosition() >= next)
+                checkpoint();
+        } while (result.status() == RunResult.Status.BUDGET_EXHAUSTED && getPosition() - start < maxCycles);
+        mEnd = Math.max(mEnd, getPosition());
+
+        return new RunResult(
+                result.status(),
+                getPosition() - start,
+                result.pc(),
+                result.exitCode(),
+                result.fault());
+    }
+
+    public RunResult step() {
+        return run(1);
+    }
+
+    /**
+     * Goes back by one instruction.
+     *
+     * @return false if the machine is already at the start of the history
+     */
+    public boolean reverseStep() {
+        final var position = getPosition();
+        if (position <= getStart())
+            return false;
+        seek(position - 1);
+        return true;
+    }
+
+    /**
+     * Goes back to the latest earlier state that satisfies <code>condition</code>, which is evaluated before each
+     * instruction. With <code>cpu -> cpu.get(ISA.RegisterAlias.PC) == address</code>, this stops at the last time
+     * the instruction at <code>address</code> was about to be executed.
+     *
+     * @return false if no earlier state satisfies the condition, the machine is then at the start of the history
+     */
+    public boolean reverseContinue(Predicate<CPU> condition) {
+        // search the interval of one checkpoint after the other, from the latest to the earliest
+        var end = getPosition();
+        for (int k = index(end - 1); k >= 0; end = mCheckpoints.get(k--).position()) {
+            final var match = search(k, end, condition);
+            if (match >= 0) {
+                seek(match);
+                return true;
+            }
+        }
+        restore(0);
+        return false;
+    }
+
+    /**
+     * Restores checkpoint <code>index</code> and executes up to <code>end</code> one instruction at a time.
+     *
+     * @return the latest position before <code>end</code> that satisfies <code>condition</code>, or -1
+     */
+    private long search(int index, long end, Predicate<CPU> condition) {
+        restore(index);
+        setSuspended(true);
+        try {
+            var match = -1L;
+            while (getPosition() < end) {
+                if (condition.test(mCPU))
+                    match = getPosition();
+                if (mVM.run(1).retired() == 0)
+                    break;
+            }
+            return match;
+        } finally {
+            setSuspended(false);
+        }
+    }
+
+    /**
+     * Moves the machine to the state after <code>position</code> instructions were retired. Positions within the
+     * recorded history are always reached, unless the guest exited or faulted there. Positions behind it are reached by
+     * running forward, which may stop early if the guest exits, breaks or faults.
+     */
+    public RunResult seek(long position) {
+        if (position < getStart())
+            throw new IllegalArgumentException(String.format(
+                    "position %d is before the start of the history at %d",
+                    position,
+                    getStart()));
+
+        // restoring a later checkpoint is also faster than executing up to it
+        if (position < getPosition() || index(position) > index(getPosition()))
+            restore(index(position));
+
+        final var replayed = replay(Math.min(position, mEnd));
+        if (position <= mEnd || replayed.status() != RunResult.Status.BUDGET_EXHAUSTED)
+            return replayed;
+
+        final var live = run(position - getPosition());
+        return new RunResult(live.status(), replayed.retired() + live.retired(), live.pc(), live.exitCode(), live.fault());
+    }
+
+    /**
+     * Executes the recorded history up to <code>position</code>. Breakpoints and watchpoints are suspended meanwhile,
+     * and the hart continues behind guest <code>ebreak</code>s, they already stopped it when it was recorded.
+     */
+    private RunResult replay(long position) {
+        final var start = getPosition();
+        setSuspended(true);
+        try {
+            var result = mVM.run(position - getPosition());
+            while (result.status() == RunResult.Status.BREAKPOINT && result.retired() > 0 && getPosition() < position)
+                result = mVM.run(position - getPosition());
+
+            final var status = result.status() == RunResult.Status.BREAKPOINT
+                    ? RunResult.Status.BUDGET_EXHAUSTED
+                    : result.status();
+            return new RunResult(status, getPosition() - start, result.pc(), result.exitCode(), result.fault());
+        } finally {
+            setSuspended(false);
+        }
+    }
+
+    private void setSuspended(boolean suspended) {
+        mMachine.getBreakpoints().setSuspended(suspended);
+        mMachine.getWatchpoints().setSuspended(suspended);
+    }
+
+    private Checkpoint last() {
+        return mCheckpoints.get(mCheckpoints.size() - 1);
+    }
+
+    /**
+     * @return the index of the latest checkpoint at or before <code>position</code>
+     */
+    private int index(long position) {
+        int low = 0;
+        int high = mCheckpoints.size() - 1;
+        while (low < high) {
+            final var mid = (low + high + 1) >>> 1;
+            if (mCheckpoints.get(mid).position() <= position) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    private void checkpoint() {
+        final var count = mCheckpoints.size();
+        // a delta has to follow the last checkpoint, which is not the last snapshot after travelling back before it
+        final var full = count % FULL_INTERVAL == 0 || mMachine.getSnapshot() != last().id();
+        final var out = new ByteArrayOutputStream();
+        try {
+            Snapshot.save(mMachine, out, !full);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mCheckpoints.add(new Checkpoint(getPosition(), mCall, mMachine.getSnapshot(), full, out.toByteArray()));
+    }
+
+    private void restore(int index) {
+        var first = index;
+        while (!mCheckpoints.get(first).full())
+            first--;
+        try {
+            for (int k = first; k <= index; k++)
+                Snapshot.restore(mMachine, new ByteArrayInputStream(mCheckpoints.get(k).snapshot()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mCall = mCheckpoints.get(index).calls();
+    }
+
+    private boolean replay(CPU cpu, int number) {
+        if (mCall == mCalls.size())
+            return false;
+
+        final var call = mCalls.get(mCall++);
+        if (call.number() != number)
+            throw new IllegalStateException(String.format(
+                    "replay diverged at call %d, expected %d but got %d",
+                    mCall - 1,
+                    call.number(),
+                    number));
+
+        if (call.output() != null)
+            mMachine.getMemory().write(call.address(), call.output(), 0, call.output().length);
+        cpu.set(ISA.RegisterAlias.A0, call.result());
+        if (number == Syscalls.EXIT || number == Syscalls.EXIT_GROUP)
+            cpu.exit(call.result());
+        return true;
+    }
+
+    private void record(CPU cpu, int number, int result) {
+        final var length = Syscalls.output(number, result);
+        final var address = cpu.get(ISA.RegisterAlias.A1);
+        byte[] output = null;
+        if (length > 0) {
+            output = new byte[length];
+            mMachine.getMemory().read(address, output, 0, length);
+        }
+        mCalls.add(new Call(number, result, address, output));
+        mCall = mCalls.size();
+    }
+}
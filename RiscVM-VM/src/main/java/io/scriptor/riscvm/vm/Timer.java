@@ -0,0 +1,40 @@
+package io.scriptor.riscvm.vm;
+
+/**
+ * A free running 64-bit counter of microseconds since the last reset, like the <code>mtime</code> register of a
+ * CLINT. The low word is at offset 0, the high word at offset 4, stores are ignored. To read a consistent value on
+ * RV32, read the high word, the low word and the high word again until both high words match.
+ */
+public class Timer implements Device {
+
+    /**
+     * where <code>mtime</code> of the QEMU virt machine is mapped
+     */
+    public static final int BASE = 0x0200B000;
+    public static final int SIZE = 8;
+
+    private volatile long mStart = System.nanoTime();
+
+    public long getTime() {
+        return (System.nanoTime() - mStart) / 1000;
+    }
+
+    @Override
+    public int load(int offset, int width) {
+        final var time = getTime();
+        return switch (offset) {
+            case 0 -> (int) time;
+            case 4 -> (int) (time >>> 32);
+            default -> 0;
+        };
+    }
+
+    @Override
+    public void store(int offset, int width, int data) {
+    }
+
+    @Override
+    public void reset() {
+        mStart = System.nanoTime();
+    }
+}
@@ -0,0 +1,362 @@
+package io.scriptor.riscvm.vm;
+
+import io.scriptor.riscvm.core.ISA;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every instruction retired by a single hart, enabled with {@link CPU#setTracer(Tracer)}. A record holds the
+ * program counter, the register written and its new value, and the address of loads, stores and atomics.
+ * <p>
+ * The hart only copies the raw record into a preallocated ring buffer and publishes it in batches, a background thread
+ * encodes the records and writes them to the file. If the writer falls behind, the hart waits for it, so the trace is
+ * never missing records. Traced harts always run interpreted.
+ * <p>
+ * The file starts with {@link #MAGIC}, the format version and the hart id. Each record starts with a varint holding the
+ * zigzag encoded distance in words of its program counter from the one behind the previous instruction, shifted left
+ * by two, with bit 0 set if a register was written and bit 1 set if an address follows. Program counters are expected
+ * to be word aligned, a misaligned one is recorded rounded down to the word. A register write continues with the
+ * register index as a byte and the zigzag varint difference to the previous value of that register, an address with
+ * the zigzag varint difference to the previous address. Straight-line code without register writes takes one byte per
+ * instruction. Use {@link Reader} to decode a trace.
+ */
+public class Tracer implements Closeable {
+
+    public static final int MAGIC = 0x52565452; // RVTR
+    public static final int VERSION = 2;
+
+    private static final int WRITE = 1;
+    private static final int ADDRESS_RS1 = 2;
+    private static final int ADDRESS_RS2 = 4;
+
+    private static final int FLAG_WRITE = 1;
+    private static final int FLAG_ADDRESS = 2;
+
+    /**
+     * what each instruction records, indexed by {@link ISA#ordinal()}
+     */
+    private static final byte[] KINDS = new byte[ISA.values().length];
+
+    static {
+        for (final var isa : ISA.values())
+            KINDS[isa.ordinal()] = (byte) switch (isa) {
+                case LW, LH, LB, LR_W, SC_W,
+                     AMOSWAP_W, AMOADD_W, AMOAND_W, AMOOR_W, AMOXOR_W, AMOMAX_W, AMOMIN_W -> WRITE | ADDRESS_RS1;
+                case SW, SH, SB -> ADDRESS_RS2;
+                case BEQ, BNE, BLT, BGE, EBREAK, NULL -> 0;
+                default -> WRITE;
+            };
+    }
+
+    /**
+     * records published at once, a power of two
+     */
+    private static final int BATCH = 4096;
+    private static final int RECORD_INTS = 4;
+    private static final int MAX_RECORD_BYTES = 5 + 1 + 5 + 5;
+
+    private final int mHart;
+    private final FileChannel mChannel;
+    private final int[] mRing;
+    private final long mMask;
+    private final Thread mWriter;
+
+    /**
+     * records written by the hart, only touched by the hart
+     */
+    private long mPosition;
+    /**
+     * records visible to the writer
+     */
+    private final AtomicLong mPublished = new AtomicLong();
+    /**
+     * records the writer is done with
+     */
+    private final AtomicLong mConsumed = new AtomicLong();
+    private volatile boolean mClosed;
+    private volatile IOException mFailure;
+
+    public Tracer(Path path, int hart) throws IOException {
+        this(path, hart, 1 << 20);
+    }
+
+    /**
+     * @param capacity number of records the ring buffer holds, rounded up to a power of two of at least two batches
+     */
+    public Tracer(Path path, int hart, int capacity) throws IOException {
+        final var records = Integer.highestOneBit(Math.max(capacity, 2 * BATCH) * 2 - 1);
+        mHart = hart;
+        mChannel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        mRing = new int[records * RECORD_INTS];
+        mMask = records - 1;
+
+        mWriter = new Thread(this::drain, "trace-" + hart);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Records the retired instruction at <code>pc</code>, which left <code>value</code> in register <code>rd</code>.
+     */
+    void record(int pc, ISA isa, int rd, int value, int address) {
+        final var kind = KINDS[isa.ordinal()];
+        var flags = 0;
+        if ((kind & WRITE) != 0 && rd != 0) flags |= FLAG_WRITE;
+        if ((kind & (ADDRESS_RS1 | ADDRESS_RS2)) != 0) flags |= FLAG_ADDRESS;
+
+        final var i = (int) (mPosition & mMask) * RECORD_INTS;
+        mRing[i] = pc;
+        mRing[i + 1] = flags << 8 | rd;
+        mRing[i + 2] = value;
+        mRing[i + 3] = address;
+
+        if ((++mPosition & (BATCH - 1)) == 0)
+            publish();
+    }
+
+    /**
+     * Hands all records to the writer and waits until the ring buffer has room for another batch.
+     */
+    void publish() {
+        mPublished.lazySet(mPosition);
+        LockSupport.unpark(mWriter);
+
+        while (mPosition + BATCH - mConsumed.get() > mMask + 1) {
+            final var failure = mFailure;
+            if (failure != null)
+                throw new UncheckedIOException(failure);
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    public int getHart() {
+        return mHart;
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getRecords() {
+        return mPosition;
+    }
+
+    /**
+     * Writes all remaining records and closes the file. Must not be called while the hart runs.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+        mPublished.set(mPosition);
+        mClosed = true;
+        LockSupport.unpark(mWriter);
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing the trace", e);
+        } finally {
+            mChannel.close();
+        }
+        if (mFailure != null)
+            throw mFailure;
+    }
+
+    private void drain() {
+        final var out = ByteBuffer.allocate(1 << 16);
+        final var registers = new int[32];
+        var next = 0;
+        var address = 0;
+
+        try {
+            out.putInt(MAGIC).put((byte) VERSION).put((byte) mHart);
+
+            long consumed = 0;
+            while (true) {
+                final var closed = mClosed;
+                final var published = mPublished.get();
+                if (consumed == published) {
+                    if (closed)
+                        break;
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+
+                for (; consumed < published; consumed++) {
+                    if (out.remaining() < MAX_RECORD_BYTES)
+                        write(out);
+
+                    final var i = (int) (consumed & mMask) * RECORD_INTS;
+                    final var pc = mRing[i];
+                    final var flags = mRing[i + 1] >>> 8;
+                    final var rd = mRing[i + 1] & 0xFF;
+
+                    // continue from the decoded program counter, so a misaligned one does not shift all following
+                    final var words = (pc - next) >> 2;
+                    putVarint(out, zigzag(words) << 2 | flags);
+                    next += (words << 2) + 4;
+                    if ((flags & FLAG_WRITE) != 0) {
+                        out.put((byte) rd);
+                        putVarint(out, zigzag(mRing[i + 2] - registers[rd]));
+                        registers[rd] = mRing[i + 2];
+                    }
+                    if ((flags & FLAG_ADDRESS) != 0) {
+                        putVarint(out, zigzag(mRing[i + 3] - address));
+                        address = mRing[i + 3];
+                    }
+                }
+                mConsumed.lazySet(consumed);
+            }
+            write(out);
+        } catch (IOException e) {
+            mFailure = e;
+        }
+    }
+
+    private void write(ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            mChannel.write(out);
+        out.clear();
+    }
+
+    private static int zigzag(int value) {
+        return value << 1 ^ value >> 31;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Decodes a trace written by a {@link Tracer}, one record at a time without allocating.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream mIn;
+        private final int mHart;
+        private final int[] mRegisters = new int[32];
+
+        private int mPC = -4;
+        private int mRegister;
+        private boolean mHasAddress;
+        private int mAddress;
+
+        public Reader(Path path) throws IOException {
+            this(Files.newInputStream(path));
+        }
+
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+            if (mIn.readInt() != MAGIC)
+                throw new IOException("not a trace file");
+            final var version = mIn.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException(String.format("unsupported trace version %d", version));
+            mHart = mIn.readUnsignedByte();
+        }
+
+        public int getHart() {
+            return mHart;
+        }
+
+        /**
+         * Advances to the next record.
+         *
+         * @return false at the end of the trace
+         */
+        public boolean next() throws IOException {
+            final var first = mIn.read();
+            if (first < 0)
+                return false;
+
+            final var head = varint(first);
+            final var flags = head & 3;
+            mPC += 4 + (unzigzag(head >>> 2) << 2);
+
+            mRegister = 0;
+            if ((flags & FLAG_WRITE) != 0) {
+                mRegister = mIn.readUnsignedByte() & 31;
+                mRegisters[mRegister] += unzigzag(varint(mIn.readUnsignedByte()));
+            }
+            mHasAddress = (flags & FLAG_ADDRESS) != 0;
+            if (mHasAddress)
+                mAddress += unzigzag(varint(mIn.readUnsignedByte()));
+            return true;
+        }
+
+        public int getPC() {
+            return mPC;
+        }
+
+        /**
+         * @return the register written by the instruction, 0 if none
+         */
+        public int getRegister() {
+            return mRegister;
+        }
+
+        /**
+         * @return the value written to {@link #getRegister()}
+         */
+        public int getValue() {
+            return mRegisters[mRegister];
+        }
+
+        /**
+         * @return true for loads, stores and atomics
+         */
+        public boolean hasAddress() {
+            return mHasAddress;
+        }
+
+        /**
+         * @return the address accessed by the instruction, if {@link #hasAddress()}
+         */
+        public int getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private int varint(int first) throws IOException {
+            var value = first & 0x7F;
+            var b = first;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = mIn.read();
+                if (b < 0)
+                    throw new EOFException("truncated trace record");
+                value |= (b & 0x7F) << shift;
+            }
+            return value;
+        }
+
+        private static int unzigzag(int value) {
+            return value >>> 1 ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.scriptor.riscvm.vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+/**
+ * The byte registers of a 16550 UART the guest needs for polled console I/O, at the usual offsets:
+ * <pre>
+ * 0: RBR on load, the next input byte, THR on store, outputs a byte
+ * 5: LSR, bit 0 set if input is available, bits 5 and 6 set as the transmitter is always empty
+ * </pre>
+ * Other registers read as zero and ignore stores.
+ */
+public class Uart implements Device {
+
+    /**
+     * where the UART of the QEMU virt machine is mapped
+     */
+    public static final int BASE = 0x10000000;
+    public static final int SIZE = 0x100;
+
+    private static final int RBR_THR = 0;
+    private static final int LSR = 5;
+    private static final int LSR_DR = 0x01;
+    private static final int LSR_THRE = 0x20;
+    private static final int LSR_TEMT = 0x40;
+
+    private final InputStream mIn;
+    private final PrintStream mOut;
+
+    public Uart() {
+        this(System.in, System.out);
+    }
+
+    public Uart(InputStream in, PrintStream out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    @Override
+    public synchronized int load(int offset, int width) {
+        try {
+            return switch (offset) {
+                case RBR_THR -> mIn.available() > 0 ? mIn.read() & 0xFF : 0;
+                case LSR -> LSR_THRE | LSR_TEMT | (mIn.available() > 0 ? LSR_DR : 0);
+                default -> 0;
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void store(int offset, int width, int data) {
+        if (offset != RBR_THR)
+            return;
+        mOut.write(data);
+        if (data == '\n')
+            mOut.flush();
+    }
+}
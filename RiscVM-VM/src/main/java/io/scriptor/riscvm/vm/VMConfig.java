@@ -1,4 +1,61 @@
 package io.scriptor.riscvm.vm;
 
-public record VMConfig(int memory, String... sections) {
+import java.nio.file.Path;
+
+/**
+ * @param image the file backing {@link MemoryType#MAPPED} and {@link MemoryType#MAPPED_PRIVATE} memory, unused by the
+ *              other memory types
+ */
+public record VMConfig(int memory, Engine engine, int harts, MemoryType memoryType, Path image, String... sections) {
+
+    public enum Engine {
+        /**
+         * decode and dispatch every instruction in {@link CPU#cycle()}
+         */
+        INTERPRETER,
+        /**
+         * translate basic blocks into pre-bound handlers, see {@link ThreadedEngine}
+         */
+        THREADED,
+        /**
+         * like {@link #THREADED}, but hot blocks get compiled to JVM bytecode, see {@link BlockCompiler}
+         */
+        JIT,
+    }
+
+    public enum MemoryType {
+        /**
+         * one contiguous buffer, see {@link DirectMemory}
+         */
+        DIRECT,
+        /**
+         * sparse pages spanning the whole 32-bit address space, allocated on first write and shared copy-on-write
+         * between forks, see {@link PagedMemory}
+         */
+        PAGED,
+        /**
+         * a memory-mapped image file that receives all stores, see {@link MappedMemory}
+         */
+        MAPPED,
+        /**
+         * an existing image file read into memory, stores stay private to the vm, see {@link MappedMemory}
+         */
+        MAPPED_PRIVATE,
+    }
+
+    public VMConfig(int memory, String... sections) {
+        this(memory, Engine.INTERPRETER, sections);
+    }
+
+    public VMConfig(int memory, Engine engine, String... sections) {
+        this(memory, engine, 1, sections);
+    }
+
+    public VMConfig(int memory, Engine engine, int harts, String... sections) {
+        this(memory, engine, harts, MemoryType.DIRECT, sections);
+    }
+
+    public VMConfig(int memory, Engine engine, int harts, MemoryType memoryType, String... sections) {
+        this(memory, engine, harts, memoryType, null, sections);
+    }
 }
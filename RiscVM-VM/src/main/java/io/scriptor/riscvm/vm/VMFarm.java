@@ -0,0 +1,232 @@
+package io.scriptor.riscvm.vm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs many independent {@link RiscVM}s on a fixed pool of worker threads. Every job executes in slices of at most
+ * <code>quantum</code> instructions; a job that used up its slice is queued again behind the others, so long-running
+ * guests cannot starve short ones. Workers steal queued slices from each other, which keeps all of them busy even if
+ * the jobs are very unevenly sized.
+ * <p>
+ * Only the first hart of a submitted machine is run. A {@link RiscVM} must not be submitted again, or run by other
+ * code, before its future completed.
+ */
+public class VMFarm implements AutoCloseable {
+
+    public static final long DEFAULT_QUANTUM = 100_000;
+
+    /**
+     * every power of two is split into this many linear sub buckets, which bounds the error of a percentile to 12.5%
+     */
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_SHIFT = 3;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_SHIFT) * SUB_BUCKETS;
+
+    /**
+     * Counters collected since the farm was created.
+     *
+     * @param retired    instructions retired by all jobs
+     * @param throughput retired instructions per second of wall-clock time
+     * @param p50        median job latency in nanoseconds, from submission to completion
+     * @param p99        99th percentile job latency in nanoseconds
+     * @param p999       99.9th percentile job latency in nanoseconds
+     * @param max        highest job latency in nanoseconds
+     */
+    public record Stats(
+            long submitted,
+            long completed,
+            long slices,
+            long retired,
+            double throughput,
+            long p50,
+            long p99,
+            long p999,
+            long max) {
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d/%d jobs, %d slices, %d instructions (%.0f/s), latency p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                    completed,
+                    submitted,
+                    slices,
+                    retired,
+                    throughput,
+                    p50 / 1e6,
+                    p99 / 1e6,
+                    p999 / 1e6,
+                    max / 1e6);
+        }
+    }
+
+    private final class Job implements Runnable {
+
+        private final RiscVM mVM;
+        private final long mSubmitted = System.nanoTime();
+        private final CompletableFuture<RunResult> mFuture = new CompletableFuture<>();
+        private long mRemaining;
+        private long mRetired;
+
+        private Job(RiscVM vm, long maxCycles) {
+            mVM = vm;
+            mRemaining = maxCycles;
+        }
+
+        @Override
+        public void run() {
+            if (mFuture.isDone()) {
+                // cancelled while waiting for its next slice
+                mCompleted.increment();
+                return;
+            }
+
+            final RunResult result;
+            try {
+                result = mVM.run(Math.min(mQuantum, mRemaining));
+            } catch (Throwable t) {
+                finish();
+                mFuture.completeExceptionally(t);
+                return;
+            }
+
+            mSlices.increment();
+            mRetired += result.retired();
+            mRemaining -= result.retired();
+            mTotalRetired.add(result.retired());
+
+            if (result.status() == RunResult.Status.BUDGET_EXHAUSTED && mRemaining > 0) {
+                mPool.execute(this);
+                return;
+            }
+
+            finish();
+            mFuture.complete(new RunResult(result.status(), mRetired, result.pc(), result.exitCode(), result.fault()));
+        }
+
+        private void finish() {
+            final var latency = System.nanoTime() - mSubmitted;
+            mLatency.incrementAndGet(bucket(latency));
+            mMaxLatency.accumulateAndGet(latency, Math::max);
+            mCompleted.increment();
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private final long mQuantum;
+    private final long mCreated = System.nanoTime();
+
+    private final LongAdder mSubmitted = new LongAdder();
+    private final LongAdder mCompleted = new LongAdder();
+    private final LongAdder mSlices = new LongAdder();
+    private final LongAdder mTotalRetired = new LongAdder();
+    /**
+     * histogram of job latencies in nanoseconds, see {@link #bucket(long)}
+     */
+    private final AtomicLongArray mLatency = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mMaxLatency = new AtomicLong();
+
+    public VMFarm() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM);
+    }
+
+    public VMFarm(int workers, long quantum) {
+        if (quantum < 1)
+            throw new IllegalArgumentException(String.format("quantum must be positive, got %d", quantum));
+
+        // async mode keeps the local queues first-in-first-out, so rescheduled slices go behind the waiting ones
+        mPool = new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        mQuantum = quantum;
+    }
+
+    /**
+     * Schedules <code>vm</code> to run for up to <code>maxCycles</code> instructions. The future completes with the
+     * combined result of all slices, or exceptionally if the run threw an error. Cancelling the future stops the job
+     * at its next slice.
+     */
+    public CompletableFuture<RunResult> submit(RiscVM vm, long maxCycles) {
+        final var job = new Job(vm, maxCycles);
+        mSubmitted.increment();
+        mPool.execute(job);
+        return job.mFuture;
+    }
+
+    public Stats getStats() {
+        final var buckets = new long[mLatency.length()];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++)
+            total += buckets[i] = mLatency.get(i);
+
+        final var seconds = (System.nanoTime() - mCreated) / 1e9;
+        final var retired = mTotalRetired.sum();
+        final var max = mMaxLatency.get();
+        return new Stats(
+                mSubmitted.sum(),
+                mCompleted.sum(),
+                mSlices.sum(),
+                retired,
+                retired / seconds,
+                percentile(buckets, total, 0.5, max),
+                percentile(buckets, total, 0.99, max),
+                percentile(buckets, total, 0.999, max),
+                max);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) Math.max(value, 0);
+        final var exponent = 63 - Long.numberOfLeadingZeros(value);
+        final var sub = (int) (value >>> (exponent - SUB_SHIFT)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_SHIFT) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        final var exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_SHIFT;
+        final var sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_SHIFT)) - 1;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given fraction of all samples, or 0 without samples
+     */
+    private static long percentile(long[] buckets, long total, double fraction, long max) {
+        final var rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0)
+                return Math.min(upperBound(i), max);
+        }
+        return 0;
+    }
+
+    /**
+     * Waits until all submitted jobs completed and stops the workers.
+     */
+    public void awaitTermination() throws InterruptedException {
+        while (mCompleted.sum() < mSubmitted.sum())
+            mPool.awaitQuiescence(1, TimeUnit.SECONDS);
+        mPool.shutdown();
+        mPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Like {@link #awaitTermination()}, but returns early if the calling thread gets interrupted. The workers still
+     * stop after their running jobs then, and the interrupt flag is restored.
+     */
+    @Override
+    public void close() {
+        try {
+            awaitTermination();
+        } catch (InterruptedException e) {
+            mPool.shutdown();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
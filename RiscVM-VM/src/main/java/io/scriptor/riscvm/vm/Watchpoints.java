@@ -0,0 +1,200 @@
+package io.scriptor.riscvm.vm;
+
+import io.scriptor.riscvm.core.ISA;
+
+import java.util.Arrays;
+
+/**
+ * Address ranges of a {@link Machine} whose loads and stores by guest instructions stop the hart, or call back into
+ * the host. A watchpoint fires after the access, the hart stops behind the instruction with
+ * {@link RunResult.Status#WATCHPOINT}. Accesses by the host, like environment calls or a debugger reading memory, are
+ * not watched.
+ * <p>
+ * Pages holding a watchpoint are flagged in the {@link Memory}, only accesses to them are checked against the exact
+ * ranges. Translated code only checks the flag while any watchpoint is set, adding the first or removing the last one
+ * drops the translated code of every hart. Watchpoints may be changed while harts run, a running hart picks up the first
+ * watchpoint or the removal of the last one with its next run at the latest.
+ */
+public class Watchpoints extends VMComponent {
+
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+
+    @FunctionalInterface
+    public interface Callback {
+        /**
+         * Called on the hart's thread, right after the access.
+         *
+         * @return true to stop the hart
+         */
+        boolean hit(CPU cpu, Hit hit);
+    }
+
+    /**
+     * @param mode     {@link #READ}, {@link #WRITE} or both
+     * @param callback called on every access, null to always stop
+     */
+    public record Watchpoint(int address, int size, int mode, Callback callback) {
+
+        boolean overlaps(int address, int size) {
+            return Integer.compareUnsigned(address, this.address + this.size) < 0
+                    && Integer.compareUnsigned(this.address, address + size) < 0;
+        }
+    }
+
+    /**
+     * @param pc    program counter of the accessing instruction
+     * @param write true for stores and read-modify-write atomics, false for loads
+     */
+    public record Hit(int pc, int address, int width, boolean write, Watchpoint watchpoint) {
+    }
+
+    /**
+     * replaced as a whole on every change, so the harts can read it without locking
+     */
+    private volatile Watchpoint[] mWatchpoints = new Watchpoint[0];
+    /**
+     * the access that stopped each hart last
+     */
+    private final Hit[] mHits;
+    private volatile boolean mSuspended;
+
+    public Watchpoints(Machine machine, int harts) {
+        super(machine);
+        mHits = new Hit[harts];
+    }
+
+    /**
+     * Stops every hart behind an access of <code>mode</code> to the <code>size</code> bytes at <code>address</code>.
+     */
+    public Watchpoint add(int address, int size, int mode) {
+        return add(address, size, mode, null);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the range is empty or leaves the memory
+     */
+    public synchronized Watchpoint add(int address, int size, int mode, Callback callback) {
+        final var memory = getMachine().getMemory();
+        if (size <= 0 || address < 0 || (long) address + size > memory.getSize())
+            throw new IllegalArgumentException(String.format("cannot watch %d bytes at %08X", size, address));
+        if ((mode & (READ | WRITE)) == 0)
+            throw new IllegalArgumentException(String.format("invalid watch mode %d", mode));
+
+        final var watchpoint = new Watchpoint(address, size, mode, callback);
+        final var watchpoints = Arrays.copyOf(mWatchpoints, mWatchpoints.length + 1);
+        watchpoints[watchpoints.length - 1] = watchpoint;
+        mWatchpoints = watchpoints;
+
+        for (int page = first(watchpoint); page <= last(watchpoint); page++)
+            memory.watch(page, true);
+        if (watchpoints.length == 1)
+            getMachine().retranslate();
+        return watchpoint;
+    }
+
+    public synchronized void remove(Watchpoint watchpoint) {
+        final var watchpoints = Arrays.stream(mWatchpoints).filter(w -> w != watchpoint).toArray(Watchpoint[]::new);
+        if (watchpoints.length == mWatchpoints.length)
+            return;
+        mWatchpoints = watchpoints;
+
+        final var memory = getMachine().getMemory();
+        for (int page = first(watchpoint); page <= last(watchpoint); page++) {
+            var watched = false;
+            for (final var other : watchpoints)
+                watched |= first(other) <= page && page <= last(other);
+            memory.watch(page, watched);
+        }
+        if (watchpoints.length == 0)
+            getMachine().retranslate();
+    }
+
+    public synchronized void clear() {
+        for (final var watchpoint : mWatchpoints)
+            remove(watchpoint);
+    }
+
+    public boolean isEmpty() {
+        return mWatchpoints.length == 0;
+    }
+
+    /**
+     * @return the access that stopped <code>hart</code> last, or null
+     */
+    public Hit getHit(int hart) {
+        return mHits[hart];
+    }
+
+    /**
+     * Suspends or resumes all watchpoints, while suspended no access is checked and no callback is called.
+     */
+    void setSuspended(boolean suspended) {
+        mSuspended = suspended;
+    }
+
+    private static int first(Watchpoint watchpoint) {
+        return watchpoint.address() >>> Memory.PAGE_SHIFT;
+    }
+
+    private static int last(Watchpoint watchpoint) {
+        return (watchpoint.address() + watchpoint.size() - 1) >>> Memory.PAGE_SHIFT;
+    }
+
+    /**
+     * Checks the access of the instruction at <code>pc</code> to <code>address</code>, which just retired.
+     *
+     * @return true if the hart has to stop
+     */
+    boolean check(CPU cpu, int pc, ISA isa, int address) {
+        final int width;
+        final int mode;
+        switch (isa) {
+            case LW, LR_W -> {
+                width = 4;
+                mode = READ;
+            }
+            case LH -> {
+                width = 2;
+                mode = READ;
+            }
+            case LB -> {
+                width = 1;
+                mode = READ;
+            }
+            case SW, SC_W -> {
+                width = 4;
+                mode = WRITE;
+            }
+            case SH -> {
+                width = 2;
+                mode = WRITE;
+            }
+            case SB -> {
+                width = 1;
+                mode = WRITE;
+            }
+            case AMOSWAP_W, AMOADD_W, AMOAND_W, AMOOR_W, AMOXOR_W, AMOMAX_W, AMOMIN_W -> {
+                width = 4;
+                mode = READ | WRITE;
+            }
+            default -> {
+                return false;
+            }
+        }
+        if (mSuspended || !getMachine().getMemory().isWatched(address, width))
+            return false;
+
+        var stop = false;
+        for (final var watchpoint : mWatchpoints) {
+            if ((watchpoint.mode() & mode) == 0 || !watchpoint.overlaps(address, width))
+                continue;
+            final var hit = new Hit(pc, address, width, (mode & WRITE) != 0, watchpoint);
+            if (watchpoint.callback() == null || watchpoint.callback().hit(cpu, hit)) {
+                mHits[cpu.getHart()] = hit;
+                stop = true;
+            }
+        }
+        return stop;
+    }
+}
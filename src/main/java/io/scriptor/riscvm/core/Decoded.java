@@ -0,0 +1,49 @@
+package io.scriptor.riscvm.core;
+
+/**
+ * Mutable counterpart of {@link Instruction}. One holder can be reused for any number of decodes, so walking over
+ * memory does not allocate.
+ */
+public class Decoded {
+
+    public ISA isa;
+    public Instruction.IType itype;
+    public int opcode;
+    public int rd;
+    public int rs1;
+    public int rs2;
+    public int imm;
+
+    /**
+     * @return false if the word does not encode a real instruction, the fields are left untouched then
+     */
+    public boolean decode(int inst) {
+        final var isa = ISA.fromOpcode(Instruction.getOpcode(inst));
+        if (isa == null || isa.itype == null)
+            return false;
+
+        this.isa = isa;
+        this.itype = isa.itype;
+        this.opcode = isa.ordinal();
+        this.rd = Instruction.getRd(itype, inst);
+        this.rs1 = Instruction.getRs1(itype, inst);
+        this.rs2 = Instruction.getRs2(itype, inst);
+        this.imm = Instruction.getImm(itype, inst);
+        return true;
+    }
+
+    public int pack() {
+        return switch (itype) {
+            case R -> Instruction.toR(opcode, rd, rs1, rs2);
+            case I -> Instruction.toI(opcode, rd, rs1, imm);
+            case S -> Instruction.toS(opcode, rs1, rs2, imm);
+            case U -> Instruction.toU(opcode, rd, imm);
+            case E -> Instruction.toE(opcode);
+        };
+    }
+
+    @Override
+    public String toString() {
+        return Instruction.format(itype, opcode, rd, rs1, rs2, imm);
+    }
+}
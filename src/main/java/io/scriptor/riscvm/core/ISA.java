@@ -90,6 +90,17 @@ public enum ISA {
     PUSH(REGISTER), // pseudo
     POP(REGISTER), // pseudo
 
+    // Atomic memory operations, written as lr.w, sc.w, amoadd.w, ...
+    LR_W(R, REGISTER, REGISTER), // load reserved: dst, address
+    SC_W(R, REGISTER, REGISTER, REGISTER), // store conditional: dst (0 on success), address, src
+    AMOSWAP_W(R, REGISTER, REGISTER, REGISTER), // amo: dst (old value), address, src
+    AMOADD_W(R, REGISTER, REGISTER, REGISTER),
+    AMOAND_W(R, REGISTER, REGISTER, REGISTER),
+    AMOOR_W(R, REGISTER, REGISTER, REGISTER),
+    AMOXOR_W(R, REGISTER, REGISTER, REGISTER),
+    AMOMAX_W(R, REGISTER, REGISTER, REGISTER),
+    AMOMIN_W(R, REGISTER, REGISTER, REGISTER),
+
     ;
 
     /**
@@ -130,6 +141,15 @@ public enum ISA {
          */
         PC;
 
+        private static final RegisterAlias[] VALUES = values();
+
+        /**
+         * @return the register with the given index, without copying {@link #values()}
+         */
+        public static RegisterAlias fromIndex(int index) {
+            return VALUES[index];
+        }
+
         public byte asByte() {
             return (byte) ordinal();
         }
@@ -140,6 +160,18 @@ public enum ISA {
         IMMEDIATE,
     }
 
+    private static final ISA[] VALUES = values();
+
+    /**
+     * @return the instruction with the given opcode, or null if there is none. Unlike {@link #values()} this does not
+     * copy the table.
+     */
+    public static ISA fromOpcode(int opcode) {
+        if (opcode < 0 || opcode >= VALUES.length)
+            return null;
+        return VALUES[opcode];
+    }
+
     public final Instruction.IType itype;
     public final OperandType[] operands;
 
@@ -158,7 +190,7 @@ public enum ISA {
                     ordinal(),
                     ops[0].asReg(),
                     ops[1].asReg(),
-                    ops[2].asReg());
+                    ops.length > 2 ? ops[2].asReg() : 0);
             case I -> Instruction.fromI(
                     ordinal(),
                     ops[0].asReg(),
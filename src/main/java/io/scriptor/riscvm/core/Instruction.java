@@ -50,6 +50,10 @@ public class Instruction {
 
     @Override
     public String toString() {
+        return format(itype, opcode, rd, rs1, rs2, imm);
+    }
+
+    public static String format(IType itype, int opcode, int rd, int rs1, int rs2, int imm) {
         return switch (itype) {
             case R -> String.format("%5s %4s, %4s, %8s", opcode(opcode), reg(rd), reg(rs1), reg(rs2));
             case I -> String.format("%5s %4s, %4s, %08X", opcode(opcode), reg(rd), reg(rs1), imm);
@@ -60,11 +64,11 @@ public class Instruction {
     }
 
     private static ISA.RegisterAlias reg(int reg) {
-        return ISA.RegisterAlias.values()[reg];
+        return ISA.RegisterAlias.fromIndex(reg);
     }
 
     private static ISA opcode(int opcode) {
-        return ISA.values()[opcode];
+        return ISA.fromOpcode(opcode);
     }
 
     public static int toR(int opcode, int rd, int rs1, int rs2) {
@@ -88,44 +92,23 @@ public class Instruction {
     }
 
     public static Instruction fromR(int inst) {
-        final int opcode = getOpcode(inst);
-        final int rd = (inst >> 7) & 0b11111;
-        final int rs1 = (inst >> 12) & 0b11111;
-        final int rs2 = (inst >> 17) & 0b11111;
-
-        return new Instruction(IType.R, opcode, rd, rs1, rs2, 0);
+        return new Instruction(IType.R, getOpcode(inst), getRd(IType.R, inst), getRs1(IType.R, inst), getRs2(IType.R, inst), 0);
     }
 
     public static Instruction fromI(int inst) {
-        final int opcode = getOpcode(inst);
-        final int rd = (inst >> 7) & 0b11111;
-        final int rs1 = (inst >> 12) & 0b11111;
-        final int imm = (inst >> 17) & 0b111111111111111;
-
-        return new Instruction(IType.I, opcode, rd, rs1, 0, imm);
+        return new Instruction(IType.I, getOpcode(inst), getRd(IType.I, inst), getRs1(IType.I, inst), 0, getImm(IType.I, inst));
     }
 
     public static Instruction fromS(int inst) {
-        final int opcode = getOpcode(inst);
-        final int rs1 = (inst >> 7) & 0b11111;
-        final int rs2 = (inst >> 12) & 0b11111;
-        final int imm = (inst >> 17) & 0b111111111111111;
-
-        return new Instruction(IType.S, opcode, 0, rs1, rs2, imm);
+        return new Instruction(IType.S, getOpcode(inst), 0, getRs1(IType.S, inst), getRs2(IType.S, inst), getImm(IType.S, inst));
     }
 
     public static Instruction fromU(int inst) {
-        final int opcode = getOpcode(inst);
-        final int rd = (inst >> 7) & 0b11111;
-        final int imm = (inst >> 12) & 0b11111111111111111111;
-
-        return new Instruction(IType.U, opcode, rd, 0, 0, imm);
+        return new Instruction(IType.U, getOpcode(inst), getRd(IType.U, inst), 0, 0, getImm(IType.U, inst));
     }
 
     public static Instruction fromE(int inst) {
-        final int opcode = getOpcode(inst);
-
-        return new Instruction(IType.E, opcode, 0, 0, 0, 0);
+        return new Instruction(IType.E, getOpcode(inst), 0, 0, 0, 0);
     }
 
     public static Instruction fromR(int opcode, int rd, int rs1, int rs2) {
@@ -152,12 +135,58 @@ public class Instruction {
         return inst & 0b1111111;
     }
 
-    public static Instruction valueOf(int inst) {
-        final var opcode = getOpcode(inst);
-        if (opcode < 0 || opcode >= ISA.values().length)
-            return null;
+    /**
+     * @return the type of the encoded instruction, or null if the opcode does not encode a real instruction
+     */
+    public static IType getType(int inst) {
+        final var isa = ISA.fromOpcode(getOpcode(inst));
+        return isa == null ? null : isa.itype;
+    }
+
+    public static int getRd(IType itype, int inst) {
+        return switch (itype) {
+            case R, I, U -> (inst >> 7) & 0b11111;
+            case S, E -> 0;
+        };
+    }
+
+    public static int getRs1(IType itype, int inst) {
+        return switch (itype) {
+            case R, I -> (inst >> 12) & 0b11111;
+            case S -> (inst >> 7) & 0b11111;
+            case U, E -> 0;
+        };
+    }
+
+    public static int getRs2(IType itype, int inst) {
+        return switch (itype) {
+            case R -> (inst >> 17) & 0b11111;
+            case S -> (inst >> 12) & 0b11111;
+            case I, U, E -> 0;
+        };
+    }
+
+    public static int getImm(IType itype, int inst) {
+        return switch (itype) {
+            case I, S -> (inst >> 17) & 0b111111111111111;
+            case U -> (inst >> 12) & 0b11111111111111111111;
+            case R, E -> 0;
+        };
+    }
+
+    /**
+     * @return the encoded instruction with its immediate replaced, all other fields stay untouched
+     */
+    public static int setImm(IType itype, int inst, int imm) {
+        return switch (itype) {
+            case I, S -> (imm & 0b111111111111111) << 17 | (inst & 0b11111111111111111);
+            case U -> (imm & 0b11111111111111111111) << 12 | (inst & 0b111111111111);
+            case R, E -> throw new IllegalStateException("Unexpected value: " + itype);
+        };
+    }
 
-        final var itype = ISA.values()[opcode].itype;
+    public static Instruction valueOf(int inst) {
+        final var itype = getType(inst);
         if (itype == null)
             return null;
 